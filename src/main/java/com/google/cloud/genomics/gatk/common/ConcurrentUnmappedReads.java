@@ -0,0 +1,238 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Collects unmapped mates on a background thread while mapped reads are
+ * already being iterated.
+ * Only getUnmappedMates needs the collected mates, and it blocks until the
+ * mates for the reference of the passed read are known: at the end of the scan,
+ * or, if the scan is known to return unmapped reads grouped by the reference
+ * of their mapped mates, as soon as the scan moves on to the next reference.
+ * The other checks only look at the read itself and never block.
+ */
+public class ConcurrentUnmappedReads<Read> implements UnmappedReads<Read> {
+  private static final Logger LOG = Logger.getLogger(ConcurrentUnmappedReads.class.getName());
+
+  private final UnmappedReads<Read> mates;
+  private final Iterable<Read> source;
+  private final boolean matesGroupedByReference;
+  private final Set<String> completeReferences = new HashSet<String>();
+  private boolean scanDone;
+  private Throwable scanError;
+  private volatile boolean stopped;
+  private Thread scanner;
+  private long waitNanos;
+  private Runnable onComplete;
+
+  /**
+   * @param mates collects the mates, only accessed under this object's lock.
+   * @param source the unmapped reads to scan.
+   * @param matesGroupedByReference true if source returns all mates of one
+   *  reference before moving on to the next, so references complete early.
+   */
+  public ConcurrentUnmappedReads(UnmappedReads<Read> mates, Iterable<Read> source,
+      boolean matesGroupedByReference) {
+    this.mates = mates;
+    this.source = source;
+    this.matesGroupedByReference = matesGroupedByReference;
+  }
+
+  /**
+   * Sets a task run on the scan thread once all mates have been collected.
+   */
+  public void setOnComplete(Runnable onComplete) {
+    this.onComplete = onComplete;
+  }
+
+  /**
+   * Starts the background scan.
+   */
+  public void start() {
+    scanner = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        scan();
+      }
+    }, "ga4gh-unmapped-scan");
+    scanner.setDaemon(true);
+    scanner.start();
+  }
+
+  private void scan() {
+    LOG.info("Collecting unmapped mates of mapped reads in the background");
+    String currentReference = null;
+    try {
+      for (Read read : source) {
+        synchronized (this) {
+          // Checked under the lock, so no read is added once close drops the mates.
+          if (stopped) {
+            break;
+          }
+          if (!mates.maybeAddRead(read) || !matesGroupedByReference) {
+            continue;
+          }
+          final String reference = mates.getMateReferenceName(read);
+          if (currentReference != null && !currentReference.equals(reference)) {
+            LOG.info("Unmapped mates of " + currentReference + " collected");
+            completeReferences.add(currentReference);
+            notifyAll();
+          }
+          currentReference = reference;
+        }
+      }
+      finish(null);
+    } catch (Throwable ex) {
+      LOG.warning("Collecting unmapped mates failed: " + ex);
+      finish(ex);
+      return;
+    }
+    if (onComplete != null && !stopped) {
+      onComplete.run();
+    }
+  }
+
+  private synchronized void finish(Throwable ex) {
+    scanDone = true;
+    scanError = ex;
+    LOG.info("Finished collecting unmapped mates of mapped reads: " +
+        mates.getReadCount() + " found, consumers waited " +
+        waitNanos / 1000000 + " ms.");
+    mates.logStats();
+    notifyAll();
+  }
+
+  /** Waits until all mates for the reference have been collected */
+  private void awaitReference(String reference) {
+    if (scanDone || completeReferences.contains(reference)) {
+      return;
+    }
+    final long start = System.nanoTime();
+    try {
+      while (!scanDone && !completeReferences.contains(reference)) {
+        wait();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while collecting unmapped mates", ex);
+    } finally {
+      waitNanos += System.nanoTime() - start;
+    }
+  }
+
+  @Override
+  public boolean isUnmappedMateOfMappedRead(Read read) {
+    return mates.isUnmappedMateOfMappedRead(read);
+  }
+
+  @Override
+  public boolean isMappedMateOfUnmappedRead(Read read) {
+    return mates.isMappedMateOfUnmappedRead(read);
+  }
+
+  /**
+   * Adds a read besides those found by the background scan, to the same mates.
+   */
+  @Override
+  public synchronized boolean maybeAddRead(Read read) {
+    return mates.maybeAddRead(read);
+  }
+
+  @Override
+  public synchronized ArrayList<Read> getUnmappedMates(Read read) {
+    final String reference = mates.getReferenceName(read);
+    if (reference == null) {
+      return null;
+    }
+    awaitReference(reference);
+    if (scanError != null && !stopped) {
+      throw new RuntimeException("Failed to collect unmapped mates", scanError);
+    }
+    return mates.getUnmappedMates(read);
+  }
+
+  @Override
+  public synchronized long getReadCount() {
+    return mates.getReadCount();
+  }
+
+  @Override
+  public synchronized boolean isComplete() {
+    return mates.isComplete();
+  }
+
+  @Override
+  public synchronized void logStats() {
+    mates.logStats();
+  }
+
+  @Override
+  public String getMateReferenceName(Read read) {
+    return mates.getMateReferenceName(read);
+  }
+
+  @Override
+  public String getReferenceName(Read read) {
+    return mates.getReferenceName(read);
+  }
+
+  /**
+   * Stops the background scan and drops the collected mates, once the scan 
+   * thread, which may still be saving them, has ended.
+   */
+  @Override
+  public void close() {
+    stop();
+    if (scanner != null && scanner != Thread.currentThread()) {
+      try {
+        scanner.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      mates.close();
+    }
+  }
+
+  /**
+   * Stops the background scan, mates collected so far are kept.
+   * If the scanned reads can be closed, their requests still in flight are cancelled.
+   */
+  public void stop() {
+    if (stopped) {
+      return;
+    }
+    stopped = true;
+    if (scanner != null) {
+      scanner.interrupt();
+    }
+    if (source instanceof Closeable) {
+      try {
+        ((Closeable) source).close();
+      } catch (IOException ex) {
+        LOG.warning("Failed to close unmapped reads source: " + ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+/**
+ * 64-bit FNV-1a hashing of strings without allocating, over both bytes of 
+ * each UTF-16 code unit. Shared by the unmapped mate store and its Bloom 
+ * filter, whose saved sidecars depend on these exact values.
+ */
+public final class FnvHash {
+  private static final long OFFSET = 0xcbf29ce484222325L;
+  private static final long PRIME = 0x100000001b3L;
+
+  private FnvHash() {
+  }
+
+  /** Returns the hash of the string */
+  public static long hash(String value) {
+    return hash(OFFSET, value);
+  }
+
+  /** Continues a hash with the characters of the string */
+  public static long hash(long hash, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      hash = hashByte(hash, c & 0xff);
+      hash = hashByte(hash, c >>> 8);
+    }
+    return hash;
+  }
+
+  /** Continues a hash with a single byte */
+  public static long hashByte(long hash, int b) {
+    hash ^= b & 0xff;
+    return hash * PRIME;
+  }
+}
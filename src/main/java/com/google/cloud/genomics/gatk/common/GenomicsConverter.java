@@ -42,4 +42,17 @@ public interface GenomicsConverter<Read, ReadGroupSet, Reference> {
 
   public SAMFileHeader makeSAMFileHeader(ReadGroupSet readGroupSet,
       List<Reference> references);
+  
+  /**
+   * Returns a converter that leaves out the fields the projection omits.
+   * Converters that can not skip fields return themselves.
+   */
+  public GenomicsConverter<Read, ReadGroupSet, Reference> withProjection(
+      ReadProjection projection);
+  
+  /**
+   * Returns true if reads may be converted concurrently by several threads,
+   * which parallel conversion requires.
+   */
+  public boolean isThreadSafe();
 }
@@ -54,4 +54,18 @@ public abstract class GenomicsConverterBase<Read, ReadGroupSet, Reference>
   
   @Override
   public abstract SAMRecord makeSAMRecord(Read read, SAMFileHeader header);
+  
+  @Override
+  public GenomicsConverter<Read, ReadGroupSet, Reference> withProjection(
+      ReadProjection projection) {
+    return this;
+  }
+  
+  /**
+   * ReadUtils decodes tags with a shared TextTagCodec, which is not thread safe.
+   */
+  @Override
+  public boolean isThreadSafe() {
+    return false;
+  }
 }
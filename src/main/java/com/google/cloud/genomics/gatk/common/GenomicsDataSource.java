@@ -26,5 +26,25 @@ public interface GenomicsDataSource<Read, ReadGroupSet, Reference> {
        throws IOException, GeneralSecurityException;
   public ReadIteratorResource<Read, ReadGroupSet, Reference> getReads(String readsetId, 
       String sequenceName, int sequenceStart, int sequenceEnd) throws IOException, GeneralSecurityException;
+  /**
+   * Resolves the metadata of a readset once, for reuse across getReads calls.
+   */
+  public ReadGroupSetSession<Read, ReadGroupSet, Reference> openSession(String readsetId)
+      throws IOException, GeneralSecurityException;
+  public ReadIteratorResource<Read, ReadGroupSet, Reference> getReads(
+      ReadGroupSetSession<Read, ReadGroupSet, Reference> session, 
+      String sequenceName, int sequenceStart, int sequenceEnd) throws IOException, GeneralSecurityException;
+  /**
+   * Returns reads with only the fields of the projection.
+   */
+  public ReadIteratorResource<Read, ReadGroupSet, Reference> getReads(
+      ReadGroupSetSession<Read, ReadGroupSet, Reference> session, 
+      String sequenceName, int sequenceStart, int sequenceEnd,
+      ReadProjection projection) throws IOException, GeneralSecurityException;
+  /**
+   * Returns the parts of the references the readset has reads on.
+   */
+  public ReadCoverage getCoverage(ReadGroupSetSession<Read, ReadGroupSet, Reference> session)
+      throws IOException, GeneralSecurityException;
   void close();
 }
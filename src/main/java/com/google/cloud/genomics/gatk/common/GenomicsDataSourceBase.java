@@ -18,12 +18,22 @@ package com.google.cloud.genomics.gatk.common;
 import com.google.api.client.extensions.java6.auth.oauth2.VerificationCodeReceiver;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.extensions.java6.auth.oauth2.GooglePromptReceiver;
+import com.google.cloud.genomics.gatk.common.GenomicsDataSourceFactory.Settings;
 import com.google.cloud.genomics.utils.GenomicsFactory;
 import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import htsjdk.samtools.SAMSequenceRecord;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 /**
@@ -38,6 +48,10 @@ public abstract class GenomicsDataSourceBase<Read, ReadGroupSet, Reference>
   protected String apiKey;
   protected boolean noLocalServer;
   protected String rootUrl;
+  protected Settings settings;
+  
+  /** Converts reads in parallel for all resources, if enabled */
+  private ExecutorService conversionExecutor;
   
   /** Genomics Factory that wraps auth details. */
   protected GenomicsFactory factory;
@@ -46,14 +60,19 @@ public abstract class GenomicsDataSourceBase<Read, ReadGroupSet, Reference>
       String clientSecretsFilename, 
       String apiKey,
       boolean noLocalServer) {
+    this(rootUrl, new Settings(clientSecretsFilename, apiKey, noLocalServer));
+  }
+  
+  public GenomicsDataSourceBase(String rootUrl, Settings settings) {
     super();
-    this.clientSecretsFilename = clientSecretsFilename;
-    this.apiKey = apiKey;
-    this.noLocalServer = noLocalServer;
+    this.clientSecretsFilename = settings.clientSecretsFile;
+    this.apiKey = settings.apiKey;
+    this.noLocalServer = settings.noLocalServer;
     this.rootUrl = rootUrl;
+    this.settings = settings;
   }
   
-  protected GenomicsFactory getFactory() throws GeneralSecurityException, IOException {
+  protected synchronized GenomicsFactory getFactory() throws GeneralSecurityException, IOException {
     if (factory == null) {
       factory = initGenomicsFactory();
     }
@@ -117,27 +136,255 @@ public abstract class GenomicsDataSourceBase<Read, ReadGroupSet, Reference>
         url.getSequence(), url.getRangeStart(), url.getRangeEnd());
   }
   
+  /**
+   * Enables read-ahead and parallel conversion on a newly created resource 
+   * if the settings ask for them.
+   */
+  protected <T extends ReadIteratorResourceBase<Read, ReadGroupSet, Reference>> T 
+      configureResource(T resource) {
+    if (settings.readAheadReads > 0 || settings.readAheadBytes > 0) {
+      resource.enableReadAhead(settings.readAheadReads, settings.readAheadBytes);
+    }
+    if (settings.conversionThreads > 0) {
+      resource.enableParallelConversion(getConversionExecutor(), 
+          settings.conversionThreads);
+    }
+    return resource;
+  }
+  
+  private synchronized ExecutorService getConversionExecutor() {
+    if (conversionExecutor == null) {
+      conversionExecutor = Executors.newFixedThreadPool(settings.conversionThreads,
+          new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("ga4gh-convert-%d")
+            .build());
+    }
+    return conversionExecutor;
+  }
+  
+  /**
+   * Stops the threads shared by resources of this data source.
+   */
+  protected synchronized void shutdownExecutors() {
+    if (conversionExecutor != null) {
+      conversionExecutor.shutdown();
+      conversionExecutor = null;
+    }
+  }
+  
+  /**
+   * Returns the reference cache directory from the settings or null if
+   * references should only be cached in memory.
+   */
+  protected File getReferenceCacheDirectory() {
+    if (settings.referenceCacheDir == null || settings.referenceCacheDir.isEmpty()) {
+      return null;
+    }
+    return getEndpointDirectory(settings.referenceCacheDir);
+  }
+  
+  /**
+   * Returns the names of the references of a readset in header order, along
+   * which whole readset streams are resumed.
+   */
+  protected static List<String> getReferenceNames(ReadGroupSetSession<?, ?, ?> session) {
+    final List<String> names = new ArrayList<String>();
+    for (SAMSequenceRecord sequence : 
+        session.getSAMFileHeader().getSequenceDictionary().getSequences()) {
+      names.add(sequence.getSequenceName());
+    }
+    return names;
+  }
+  
+  /**
+   * Returns the subdirectory of a cache directory for the root url, as ids
+   * are only unique per server.
+   */
+  protected File getEndpointDirectory(String directory) {
+    try {
+      return new File(directory, URLEncoder.encode(rootUrl, "UTF-8"));
+    } catch (UnsupportedEncodingException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+  
+  /**
+   * Returns the directory for spill files or null for the default one.
+   */
+  protected File getSpillDirectory() {
+    if (settings.spillDir == null || settings.spillDir.isEmpty()) {
+      return null;
+    }
+    return new File(settings.spillDir);
+  }
+  
+  /**
+   * Returns the directory of unmapped mates sidecars or null if they are disabled.
+   */
+  protected File getUnmappedMatesSidecarDirectory() {
+    if (settings.unmappedMatesSidecarDir == null || 
+        settings.unmappedMatesSidecarDir.isEmpty()) {
+      return null;
+    }
+    return getEndpointDirectory(settings.unmappedMatesSidecarDir);
+  }
+  
+  /**
+   * Returns true if unmapped mates should be kept serialized off-heap,
+   * which sidecars require.
+   */
+  protected boolean useOffHeapUnmappedMates() {
+    return settings.offHeapUnmappedMates || getUnmappedMatesSidecarDirectory() != null;
+  }
+  
   /**
    * Gets unmapped mates so we can inject them besides their mapped pairs.
+   * Unless disabled in the settings, mates are collected in the background
+   * while mapped reads are returned.
+   * If sidecars are enabled, mates saved by an earlier run on the same data are
+   * reused, otherwise the collected mates are saved for later runs.
    * @throws GeneralSecurityException 
    * @throws IOException
    */
-  protected UnmappedReads<Read> getUnmappedMatesOfMappedReads(String readsetId) 
+  protected UnmappedReads<Read> getUnmappedMatesOfMappedReads(
+      ReadGroupSetSession<Read, ReadGroupSet, Reference> session) 
       throws GeneralSecurityException, IOException {
-    LOG.info("Collecting unmapped mates of mapped reads for injection");
+    final String readsetId = session.getReadsetId();
+    final File sidecarDirectory = getUnmappedMatesSidecarDirectory();
+    final File sidecar = sidecarDirectory == null ? null : 
+      UnmappedMatesSidecar.getFile(sidecarDirectory, readsetId, 
+          getDataVersion(session.getReadGroupSet()));
+    if (sidecar != null && UnmappedMatesSidecar.exists(sidecar)) {
+      try {
+        final UnmappedReads<Read> unmappedReads = openUnmappedReads(sidecar);
+        LOG.info("Reusing " + unmappedReads.getReadCount() + 
+            " unmapped mates of mapped reads from " + sidecar);
+        return unmappedReads;
+      } catch (IOException ex) {
+        LOG.warning("Ignoring unreadable unmapped mates sidecar " + sidecar + ": " + ex);
+      }
+    }
     final Iterable<Read> unmappedReadsIterable = getUnmappedReadsIterator(readsetId); 
     final UnmappedReads<Read> unmappedReads = createUnmappedReads();
+    if (settings.concurrentUnmappedScan) {
+      final ConcurrentUnmappedReads<Read> concurrentUnmappedReads = 
+          new ConcurrentUnmappedReads<Read>(unmappedReads, unmappedReadsIterable,
+              settings.unmappedMatesGroupedByReference);
+      if (sidecar != null) {
+        concurrentUnmappedReads.setOnComplete(new Runnable() {
+          @Override
+          public void run() {
+            trySaveUnmappedReads(unmappedReads, sidecar);
+          }
+        });
+      }
+      concurrentUnmappedReads.start();
+      return concurrentUnmappedReads;
+    }
+    LOG.info("Collecting unmapped mates of mapped reads for injection");
     for (Read read : unmappedReadsIterable) {
       unmappedReads.maybeAddRead(read);
     }
     LOG.info("Finished collecting unmapped mates of mapped reads: " + 
         unmappedReads.getReadCount() + " found.");
+    unmappedReads.logStats();
+    if (sidecar != null) {
+      trySaveUnmappedReads(unmappedReads, sidecar);
+    }
     return unmappedReads;
   }
+  
+  private void trySaveUnmappedReads(UnmappedReads<Read> unmappedReads, File sidecar) {
+    if (!unmappedReads.isComplete()) {
+      // Later runs would skip the missing mates, as if they were injected.
+      LOG.warning("Not saving unmapped mates sidecar " + sidecar + 
+          ", some mates could not be stored");
+      return;
+    }
+    try {
+      saveUnmappedReads(unmappedReads, sidecar);
+    } catch (IOException ex) {
+      LOG.warning("Failed to save unmapped mates sidecar " + sidecar + ": " + ex);
+    }
+  }
     
-  public abstract ReadIteratorResource<Read, ReadGroupSet, Reference> getReads(String readsetId, 
-      String sequenceName, int sequenceStart, int sequenceEnd) throws IOException, GeneralSecurityException;
+  @Override
+  public ReadIteratorResource<Read, ReadGroupSet, Reference> getReads(String readsetId, 
+      String sequenceName, int sequenceStart, int sequenceEnd) 
+          throws IOException, GeneralSecurityException {
+    return getReads(openSession(readsetId), sequenceName, sequenceStart, sequenceEnd);
+  }
+  
+  @Override
+  public ReadIteratorResource<Read, ReadGroupSet, Reference> getReads(
+      ReadGroupSetSession<Read, ReadGroupSet, Reference> session,
+      String sequenceName, int sequenceStart, int sequenceEnd) 
+          throws IOException, GeneralSecurityException {
+    return getReads(session, sequenceName, sequenceStart, sequenceEnd, 
+        settings.readProjection);
+  }
+  
+  /**
+   * Returns the coverage of the readset, from the coverage cache directory if
+   * an earlier run saved it for the same data, otherwise from the API.
+   */
+  @Override
+  public ReadCoverage getCoverage(ReadGroupSetSession<Read, ReadGroupSet, Reference> session)
+      throws IOException, GeneralSecurityException {
+    final String readsetId = session.getReadsetId();
+    final File directory = getCoverageCacheDirectory();
+    final File file = directory == null ? null : 
+      ReadCoverage.getFile(directory, readsetId, 
+          getDataVersion(session.getReadGroupSet()), settings.coverageBucketWidth);
+    if (file != null && file.exists()) {
+      try {
+        final ReadCoverage coverage = ReadCoverage.load(file);
+        LOG.info("Loaded coverage of readset " + readsetId + " from " + file);
+        return coverage;
+      } catch (IOException ex) {
+        LOG.warning("Ignoring unreadable coverage file " + file + ": " + ex);
+      }
+    }
+    LOG.info("Getting coverage of readset " + readsetId);
+    final ReadCoverage.Builder builder = new ReadCoverage.Builder();
+    fetchCoverage(readsetId, settings.coverageBucketWidth, builder);
+    final ReadCoverage coverage = builder.build();
+    if (file != null) {
+      try {
+        coverage.save(file);
+      } catch (IOException ex) {
+        LOG.warning("Failed to write coverage file " + file + ": " + ex);
+      }
+    }
+    return coverage;
+  }
+  
+  /**
+   * Returns the directory coverage is saved to or null if it should not be saved.
+   */
+  protected File getCoverageCacheDirectory() {
+    if (settings.coverageCacheDir == null || settings.coverageCacheDir.isEmpty()) {
+      return null;
+    }
+    return getEndpointDirectory(settings.coverageCacheDir);
+  }
     
   protected abstract UnmappedReads<Read> createUnmappedReads();
+  
+  /**
+   * Returns a fingerprint of the readset's data, sidecars of other versions
+   * are not reused.
+   */
+  protected abstract String getDataVersion(ReadGroupSet readGroupSet) throws IOException;
+  protected abstract UnmappedReads<Read> openUnmappedReads(File sidecar) throws IOException;
+  protected abstract void saveUnmappedReads(UnmappedReads<Read> unmappedReads, File sidecar) 
+      throws IOException;
   protected abstract Iterable<Read> getUnmappedReadsIterator(String readsetId) throws GeneralSecurityException, IOException;
+  /**
+   * Adds all coverage buckets of the readset, of about bucketWidth bases, 
+   * to the builder.
+   */
+  protected abstract void fetchCoverage(String readsetId, int bucketWidth, 
+      ReadCoverage.Builder builder) throws GeneralSecurityException, IOException;
 }
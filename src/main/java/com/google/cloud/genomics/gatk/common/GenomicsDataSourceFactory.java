@@ -15,17 +15,29 @@ limitations under the License.
 */
 package com.google.cloud.genomics.gatk.common;
 
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Logger;
 
 /**
  * Creates GenomicsApiDataSource objects, one per each root url
  * (e.g. https://www.googleapis.com/genomics/v1beta2).
  * Allows configuring settings such as client secrets file on a per 
  * root url basis.
+ * Data sources can also be shared: acquire hands out reference counted 
+ * handles to one data source per root url and settings, so concurrent readers
+ * reuse its channels, credentials and metadata caches. The data source is
+ * closed when the last handle is released.
+ * Thread safe.
  * This class is abstract and is later specialized for API vs. GRPC.
  */
 public abstract class GenomicsDataSourceFactory<Read, ReadGroupSet, Reference> {
+  private static final Logger LOG = Logger.getLogger(GenomicsDataSourceFactory.class.getName());
+  
   /**
    * Settings required for initializing GenomicsApiDataSource
    */
@@ -42,6 +54,140 @@ public abstract class GenomicsDataSourceFactory<Read, ReadGroupSet, Reference> {
     public String clientSecretsFile;
     public String apiKey;
     public boolean noLocalServer;
+    /**
+     * Number of concurrent streams a requested range (or each reference of a 
+     * whole readset) is split into. GRPC only, values below 2 disable sharding.
+     */
+    public int streamShards = 1;
+    /**
+     * Number of channels, each with its own connection, that concurrent 
+     * streams are spread over. GRPC only.
+     */
+    public int grpcChannels = 1;
+    /**
+     * Whether a new stream goes to the channel with the fewest active streams
+     * instead of the next channel in turn. GRPC only.
+     */
+    public boolean leastLoadedChannels = false;
+    /** Flow control window of each stream, 0 for the transport default. GRPC only. */
+    public int streamWindowBytes = 1000000;
+    /**
+     * Flow control window shared by the streams of a connection, 0 for the 
+     * transport default. GRPC only.
+     */
+    public int connectionWindowBytes = 0;
+    /**
+     * Number of times a failed stream of reads is resumed without a read
+     * delivered in between before the failure is reported, 0 to never retry.
+     */
+    public int streamRetries = 5;
+    /** Wait before the first retry of a failed stream, doubled for each further one. */
+    public long retryInitialBackoffMillis = 1000;
+    /** Longest wait before a retry of a failed stream. */
+    public long retryMaxBackoffMillis = 60000;
+    /**
+     * Maximum number of reads fetched ahead of the consumer on a separate
+     * thread, 0 for no limit. Read-ahead is off unless this or readAheadBytes is set.
+     */
+    public int readAheadReads = 0;
+    /** Maximum estimated size of reads fetched ahead, 0 for no limit. */
+    public long readAheadBytes = 0;
+    /** 
+     * Number of threads converting reads to SAMRecords in parallel,
+     * 0 to convert on the consuming thread.
+     */
+    public int conversionThreads = 0;
+    /** 
+     * Whether to return records that decode bases, qualities, CIGAR and
+     * attributes only when first accessed.
+     */
+    public boolean lazySAMRecords = false;
+    /** Fields of reads fetched and converted by queries */
+    public ReadProjection readProjection = ReadProjection.ALL;
+    /**
+     * Directory where reference set metadata is cached across runs, in a 
+     * subdirectory per root url, empty to only cache it in memory.
+     */
+    public String referenceCacheDir = "";
+    /** Number of concurrent requests used to fetch a reference set. */
+    public int referenceFetchThreads = 16;
+    /**
+     * Keep unmapped mates collected for injection serialized outside of the heap
+     * instead of as model objects.
+     */
+    public boolean offHeapUnmappedMates = false;
+    /**
+     * Memory budget for off-heap unmapped mates, beyond which they spill to
+     * disk, as they also do once -XX:MaxDirectMemorySize is reached.
+     */
+    public long unmappedMatesMemoryBytes = 1024L * 1024 * 1024;
+    /** Number of unmapped mates the lookup Bloom filter is sized for. */
+    public long expectedUnmappedMates = UnmappedReadsBase.DEFAULT_EXPECTED_MATES;
+    /**
+     * Directory where unmapped mates collected for a readset are saved and
+     * reused by later runs, in a subdirectory per root url, empty to disable.
+     * Implies off-heap unmapped mates.
+     */
+    public String unmappedMatesSidecarDir = "";
+    /** Directory for spill files, empty for the default temporary directory. */
+    public String spillDir = "";
+    /**
+     * Collect unmapped mates on a background thread while mapped reads are
+     * returned, instead of before the first one.
+     */
+    public boolean concurrentUnmappedScan = true;
+    /**
+     * Whether the API returns unmapped reads grouped by the reference of their
+     * mapped mates, which lets reads of a reference proceed as soon as its
+     * mates are collected rather than at the end of the scan.
+     */
+    public boolean unmappedMatesGroupedByReference = false;
+    /**
+     * Maximum number of bases between queried intervals that are streamed 
+     * together by a single query.
+     */
+    public int intervalMergeGap = 1000;
+    /**
+     * Number of intervals whose streams are opened ahead of the one being
+     * consumed, 0 to open each interval only once the previous one is done.
+     */
+    public int prefetchIntervals = 0;
+    /** Memory budget for records buffered by prefetched streams. */
+    public long prefetchBytes = 256L * 1024 * 1024;
+    /**
+     * Target width of the coverage buckets the index of a readset is built from.
+     */
+    public int coverageBucketWidth = 16384;
+    /**
+     * Directory where readset coverage is cached across runs, in a
+     * subdirectory per root url, empty to fetch it every run.
+     */
+    public String coverageCacheDir = "";
+    /**
+     * Longest read the index of a readset allows for: a region of the index 
+     * covers the reads starting up to this many bases before it.
+     */
+    public int maxReadLength = 10000;
+    /** Number of recently streamed paired reads kept for queryMate lookups. */
+    public int mateCacheSize = 100000;
+    /**
+     * Number of bases streamed from the mate position when a queryMate lookup
+     * misses the cache, so that mates of nearby reads are cached as well.
+     */
+    public int mateWindow = 1000;
+    
+    /** Returns the values of all settings, to tell data sources apart by */
+    private List<Object> values() {
+      final List<Object> values = new ArrayList<Object>();
+      for (Field field : Settings.class.getFields()) {
+        try {
+          values.add(field.get(this));
+        } catch (IllegalAccessException ex) {
+          throw new IllegalStateException(ex);
+        }
+      }
+      return values;
+    }
   }
   
   /**
@@ -56,14 +202,57 @@ public abstract class GenomicsDataSourceFactory<Read, ReadGroupSet, Reference> {
     public GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource;
   }
   
+  /**
+   * A data source shared by all handles acquired for the same root url and
+   * settings, and the number of those not yet released.
+   */
+  private static class Shared<Read, ReadGroupSet, Reference> {
+    GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource;
+    int references;
+  }
+  
+  /**
+   * A reference to a shared data source, releasing it closes the data source
+   * if no other handle refers to it. Releasing more than once has no effect.
+   */
+  public class Handle implements Closeable {
+    private final List<Object> key;
+    private final GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource;
+    private boolean released;
+    
+    private Handle(List<Object> key, 
+        GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource) {
+      this.key = key;
+      this.dataSource = dataSource;
+    }
+    
+    public GenomicsDataSource<Read, ReadGroupSet, Reference> getDataSource() {
+      return dataSource;
+    }
+    
+    @Override
+    public void close() {
+      synchronized (GenomicsDataSourceFactory.this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      release(key);
+    }
+  }
+  
   private Map<String, Data<Read, ReadGroupSet, Reference>> dataSources = 
       new HashMap<String, Data<Read, ReadGroupSet, Reference>>();
   
+  private Map<List<Object>, Shared<Read, ReadGroupSet, Reference>> sharedDataSources = 
+      new HashMap<List<Object>, Shared<Read, ReadGroupSet, Reference>>();
+  
   /**
    * Sets the settings for a given root url, that will be used for creating
    * the data source. Has no effect if the data source has already been created.
    */
-  public void configure(String rootUrl, Settings settings) {
+  public synchronized void configure(String rootUrl, Settings settings) {
     Data<Read, ReadGroupSet, Reference> data = dataSources.get(rootUrl);
     if (data == null) {
       data = new Data<Read, ReadGroupSet, Reference>(settings, null);
@@ -76,7 +265,7 @@ public abstract class GenomicsDataSourceFactory<Read, ReadGroupSet, Reference> {
   /**
    * Lazily creates and returns the data source for a given root url.
    */
-  public GenomicsDataSource<Read, ReadGroupSet, Reference> get(String rootUrl) {
+  public synchronized GenomicsDataSource<Read, ReadGroupSet, Reference> get(String rootUrl) {
     Data<Read, ReadGroupSet, Reference> data = dataSources.get(rootUrl);
     if (data == null) {
       data = new Data<Read, ReadGroupSet, Reference>(new Settings(), null);
@@ -88,6 +277,49 @@ public abstract class GenomicsDataSourceFactory<Read, ReadGroupSet, Reference> {
     return data.dataSource;
   }
   
+  /**
+   * Returns a handle to the data source shared by everyone using the same
+   * root url and settings, creating it if there is none.
+   * The handle has to be closed once the data source is no longer used.
+   */
+  public Handle acquire(String rootUrl, Settings settings) {
+    final List<Object> key = new ArrayList<Object>(2);
+    key.add(rootUrl);
+    // A snapshot, so later changes to the settings object do not affect lookups.
+    key.add(settings.values());
+    synchronized (this) {
+      Shared<Read, ReadGroupSet, Reference> shared = sharedDataSources.get(key);
+      if (shared == null) {
+        shared = new Shared<Read, ReadGroupSet, Reference>();
+        shared.dataSource = makeDataSource(rootUrl, settings);
+        sharedDataSources.put(key, shared);
+        LOG.info("Created shared data source for " + rootUrl);
+      }
+      shared.references++;
+      return new Handle(key, shared.dataSource);
+    }
+  }
+  
+  private void release(List<Object> key) {
+    final GenomicsDataSource<Read, ReadGroupSet, Reference> toClose;
+    synchronized (this) {
+      final Shared<Read, ReadGroupSet, Reference> shared = sharedDataSources.get(key);
+      if (shared == null || --shared.references > 0) {
+        return;
+      }
+      sharedDataSources.remove(key);
+      toClose = shared.dataSource;
+    }
+    // Closing may wait for channels, do it without blocking other readers.
+    LOG.info("Closing shared data source for " + key.get(0));
+    toClose.close();
+  }
+  
+  /** Number of shared data sources that have unreleased handles */
+  public synchronized int getSharedDataSourceCount() {
+    return sharedDataSources.size();
+  }
+  
   protected abstract GenomicsDataSource<Read, ReadGroupSet, Reference> makeDataSource(
       String rootUrl, Settings settings);
 }
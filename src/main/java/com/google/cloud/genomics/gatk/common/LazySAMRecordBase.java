@@ -0,0 +1,211 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.SAMBinaryTagAndValue;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTagUtil;
+
+/**
+ * SAMRecord that keeps the source read and decodes bases, qualities,
+ * CIGAR and attributes from it on first access, like htsjdk's BAMRecord does
+ * with the binary record.
+ * Flags, positions, mapping quality and the read name are set eagerly by the
+ * converter, so consumers that only look at those never decode the rest.
+ * The read group is answered without decoding the other attributes.
+ * Not thread safe, like SAMRecord.
+ */
+public abstract class LazySAMRecordBase<Read> extends SAMRecord {
+  private static final short READ_GROUP_TAG = SAMTagUtil.getSingleton().RG;
+  
+  private Read read;
+  private boolean basesDecoded;
+  private boolean qualitiesDecoded;
+  private boolean cigarDecoded;
+  private boolean attributesDecoded;
+
+  protected LazySAMRecordBase(SAMFileHeader header, Read read) {
+    super(header);
+    this.read = read;
+  }
+  
+  /** Returns the length of the sequence the bases will be decoded from */
+  protected abstract int getReadLength(Read read);
+  /** Returns the bases of the read, or null if it has no sequence */
+  protected abstract byte[] decodeReadBases(Read read);
+  /** Returns the qualities of the read, or null if it has none */
+  protected abstract byte[] decodeBaseQualities(Read read);
+  /** Returns the CIGAR of the read, or null if it has none */
+  protected abstract Cigar decodeCigar(Read read);
+  /** Sets the read group and the info tags of the read on this record */
+  protected abstract void decodeAttributes(Read read);
+  /** 
+   * Returns true if the read group attribute only comes from the read group id,
+   * and not from an info tag that would replace it.
+   */
+  protected abstract boolean isReadGroupFromId(Read read);
+  /** Returns the read group attribute set by decodeAttributes, or null */
+  protected abstract String getReadGroupId(Read read);
+
+  @Override
+  public int getReadLength() {
+    if (!basesDecoded) {
+      return getReadLength(read);
+    }
+    return super.getReadLength();
+  }
+
+  @Override
+  public byte[] getReadBases() {
+    if (!basesDecoded) {
+      basesDecoded = true;
+      final byte[] bases = decodeReadBases(read);
+      if (bases != null) {
+        super.setReadBases(bases);
+      }
+    }
+    return super.getReadBases();
+  }
+
+  @Override
+  public void setReadBases(byte[] bases) {
+    basesDecoded = true;
+    super.setReadBases(bases);
+  }
+
+  @Override
+  public void setReadString(String sequence) {
+    basesDecoded = true;
+    super.setReadString(sequence);
+  }
+
+  @Override
+  public byte[] getBaseQualities() {
+    if (!qualitiesDecoded) {
+      qualitiesDecoded = true;
+      final byte[] qualities = decodeBaseQualities(read);
+      if (qualities != null) {
+        super.setBaseQualities(qualities);
+      }
+    }
+    return super.getBaseQualities();
+  }
+
+  @Override
+  public void setBaseQualities(byte[] qualities) {
+    qualitiesDecoded = true;
+    super.setBaseQualities(qualities);
+  }
+
+  @Override
+  public Cigar getCigar() {
+    if (!cigarDecoded) {
+      cigarDecoded = true;
+      final Cigar cigar = decodeCigar(read);
+      if (cigar != null) {
+        initializeCigar(cigar);
+        SAMRecordConversion.validateCigar(this);
+      }
+    }
+    return super.getCigar();
+  }
+
+  @Override
+  public void setCigar(Cigar cigar) {
+    cigarDecoded = true;
+    super.setCigar(cigar);
+  }
+
+  @Override
+  public void setCigarString(String cigar) {
+    cigarDecoded = true;
+    super.setCigarString(cigar);
+  }
+
+  @Override
+  public Object getAttribute(short tag) {
+    if (!attributesDecoded) {
+      if (tag == READ_GROUP_TAG && isReadGroupFromId(read)) {
+        return getReadGroupId(read);
+      }
+      decodeAttributes();
+    }
+    return super.getAttribute(tag);
+  }
+
+  @Override
+  public boolean isUnsignedArrayAttribute(String tag) {
+    decodeAttributes();
+    return super.isUnsignedArrayAttribute(tag);
+  }
+
+  @Override
+  protected void setAttribute(short tag, Object value, boolean isUnsignedArray) {
+    decodeAttributes();
+    super.setAttribute(tag, value, isUnsignedArray);
+  }
+
+  @Override
+  public void clearAttributes() {
+    attributesDecoded = true;
+    super.clearAttributes();
+  }
+
+  @Override
+  protected void setAttributes(SAMBinaryTagAndValue attributes) {
+    attributesDecoded = true;
+    super.setAttributes(attributes);
+  }
+
+  @Override
+  protected SAMBinaryTagAndValue getBinaryAttributes() {
+    decodeAttributes();
+    return super.getBinaryAttributes();
+  }
+
+  @Override
+  public String getSAMString() {
+    // Checks the attributes field directly before formatting them.
+    decodeAttributes();
+    return super.getSAMString();
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    // Copies the attributes field directly.
+    eagerDecode();
+    return super.clone();
+  }
+
+  @Override
+  protected void eagerDecode() {
+    getReadBases();
+    getBaseQualities();
+    getCigar();
+    decodeAttributes();
+    super.eagerDecode();
+    read = null;
+  }
+
+  private void decodeAttributes() {
+    if (!attributesDecoded) {
+      attributesDecoded = true;
+      decodeAttributes(read);
+    }
+  }
+}
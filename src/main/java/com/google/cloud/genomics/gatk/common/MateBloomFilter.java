@@ -0,0 +1,139 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Bloom filter over (reference, fragment name) pairs of collected unmapped mates,
+ * so that checking a mapped read that has no unmapped mates, by far the common
+ * case, neither allocates nor touches the mate store.
+ * Hashes the characters of both strings in place with FnvHash and derives
+ * the probe positions by double hashing.
+ * Not thread safe.
+ */
+public class MateBloomFilter {
+  private final long[] bits;
+  private final long bitCount;
+  private final int hashCount;
+  private long insertions;
+
+  /**
+   * Sizes the filter for the given number of entries and false positive rate.
+   */
+  public MateBloomFilter(long expectedInsertions, double falsePositiveRate) {
+    final long n = Math.max(1, expectedInsertions);
+    final long m = Math.max(64,
+        (long) (-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+    bits = new long[(int) Math.min(Integer.MAX_VALUE, (m + 63) / 64)];
+    bitCount = (long) bits.length * 64;
+    hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+  }
+
+  private MateBloomFilter(long[] bits, int hashCount, long insertions) {
+    this.bits = bits;
+    this.bitCount = (long) bits.length * 64;
+    this.hashCount = hashCount;
+    this.insertions = insertions;
+  }
+
+  public void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(hashCount);
+    out.writeLong(insertions);
+    out.writeInt(bits.length);
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  public static MateBloomFilter readFrom(DataInputStream in) throws IOException {
+    final int hashCount = in.readInt();
+    final long insertions = in.readLong();
+    final long[] bits = new long[in.readInt()];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = in.readLong();
+    }
+    return new MateBloomFilter(bits, hashCount, insertions);
+  }
+
+  public void add(String reference, String fragmentName) {
+    final long hash = hash(reference, fragmentName);
+    final long step = mix(hash) | 1;
+    long probe = hash;
+    for (int i = 0; i < hashCount; i++) {
+      final long bit = (probe & Long.MAX_VALUE) % bitCount;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+      probe += step;
+    }
+    insertions++;
+  }
+
+  /**
+   * Returns false if the pair was definitely never added.
+   */
+  public boolean mightContain(String reference, String fragmentName) {
+    final long hash = hash(reference, fragmentName);
+    final long step = mix(hash) | 1;
+    long probe = hash;
+    for (int i = 0; i < hashCount; i++) {
+      final long bit = (probe & Long.MAX_VALUE) % bitCount;
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+      probe += step;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the false positive rate expected for the current number of entries.
+   */
+  public double getExpectedFalsePositiveRate() {
+    return Math.pow(1 - Math.exp(-(double) hashCount * insertions / bitCount),
+        hashCount);
+  }
+
+  public long getInsertions() {
+    return insertions;
+  }
+
+  public long getBitCount() {
+    return bitCount;
+  }
+
+  public int getHashCount() {
+    return hashCount;
+  }
+
+  private static long hash(String reference, String fragmentName) {
+    long hash = FnvHash.hash(reference);
+    // Separates the strings so that ("ab", "c") and ("a", "bc") differ.
+    hash = FnvHash.hashByte(hash, 0xff);
+    return FnvHash.hash(hash, fragmentName);
+  }
+
+  /** Finalizer of MurmurHash3, decorrelates the second hash from the first */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,550 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps serialized unmapped mates outside of the Java heap.
+ * Records are appended to direct memory chunks up to a memory budget and to
+ * a temporary spill file beyond it. Each reference has a compact index from a
+ * 64-bit hash of the fragment name to record offsets, held in primitive arrays,
+ * so a stored mate costs a few bytes of heap regardless of its size.
+ * Records keep the full fragment name, so hash collisions are resolved on lookup.
+ * A complete store can be saved to a file and later reopened read-only with
+ * the records memory-mapped, see save and open.
+ * Closing the store frees its memory and deletes the spill file right away,
+ * rather than when the store is garbage collected or the JVM exits.
+ */
+public class OffHeapMateStore {
+  private static final Logger LOG = Logger.getLogger(OffHeapMateStore.class.getName());
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** Largest direct memory chunk, records never span chunks */
+  private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+  /** Marks offsets that point into the spill file */
+  private static final long SPILLED = 1L << 62;
+  /** Record header: fragment name length and data length */
+  private static final int HEADER_SIZE = 2 + 4;
+  /** Size of memory-mapped regions of a saved store, records never span them */
+  private static final int MAPPED_CHUNK_SIZE = 1 << 30;
+  /** Identifies saved stores, at the very end of the file */
+  private static final long FILE_MAGIC = 0x4741344748534d53L;
+
+  private final long memoryBudget;
+  private final int chunkSize;
+  private final File spillDirectory;
+  private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  private final Map<String, Index> indexes = new HashMap<String, Index>();
+  private File spillFile;
+  private FileChannel spill;
+  private long spillSize;
+  private long memorySize;
+  private long recordCount;
+  private final boolean readOnly;
+  private boolean closed;
+  /** Set once direct memory ran out, later records go to the spill file */
+  private boolean directMemoryExhausted;
+  /** Set if buffers can not be freed explicitly on this JVM */
+  private static volatile boolean cleanerUnavailable;
+
+  /**
+   * @param memoryBudget bytes of direct memory used before spilling to disk.
+   * @param spillDirectory where the spill file is created, null for the default
+   *  temporary directory.
+   */
+  public OffHeapMateStore(long memoryBudget, File spillDirectory) {
+    this.memoryBudget = Math.max(0, memoryBudget);
+    this.chunkSize = (int) Math.max(HEADER_SIZE,
+        Math.min(MAX_CHUNK_SIZE, this.memoryBudget));
+    this.spillDirectory = spillDirectory;
+    this.readOnly = false;
+  }
+
+  /** Makes a read-only store over memory-mapped records */
+  private OffHeapMateStore(List<ByteBuffer> mappedChunks, Map<String, Index> indexes,
+      long recordCount, long size) {
+    this.memoryBudget = size;
+    this.chunkSize = MAPPED_CHUNK_SIZE;
+    this.spillDirectory = null;
+    this.chunks.addAll(mappedChunks);
+    this.indexes.putAll(indexes);
+    this.recordCount = recordCount;
+    this.memorySize = size;
+    this.readOnly = true;
+  }
+
+  /**
+   * Stores a serialized mate under the reference and fragment name of its mapped mate.
+   */
+  public synchronized void add(String reference, String fragmentName, byte[] data)
+      throws IOException {
+    if (readOnly) {
+      throw new IllegalStateException("Can not add mates to a saved store");
+    }
+    checkNotClosed();
+    final byte[] name = fragmentName.getBytes(UTF8);
+    if (name.length > Short.MAX_VALUE) {
+      throw new IOException("Fragment name too long: " + fragmentName);
+    }
+    final int size = HEADER_SIZE + name.length + data.length;
+    final long offset;
+    final ByteBuffer target = allocateInMemory(size);
+    if (target != null) {
+      offset = (long) (chunks.size() - 1) * chunkSize + target.position();
+      writeRecord(target, name, data);
+      memorySize += size;
+    } else {
+      final ByteBuffer buffer = ByteBuffer.allocate(size);
+      writeRecord(buffer, name, data);
+      buffer.flip();
+      offset = SPILLED | spillSize;
+      final FileChannel channel = getSpill();
+      long position = spillSize;
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+      spillSize += size;
+    }
+    Index index = indexes.get(reference);
+    if (index == null) {
+      index = new Index();
+      indexes.put(reference, index);
+    }
+    index.add(FnvHash.hash(fragmentName), offset);
+    recordCount++;
+  }
+
+  /**
+   * Returns the serialized mates stored for the reference and fragment name,
+   * in the order they were added, or null if there are none.
+   */
+  public synchronized List<byte[]> get(String reference, String fragmentName)
+      throws IOException {
+    final Index index = indexes.get(reference);
+    if (index == null) {
+      return null;
+    }
+    final byte[] name = fragmentName.getBytes(UTF8);
+    List<byte[]> result = null;
+    for (long offset : index.find(FnvHash.hash(fragmentName))) {
+      final byte[] data = readRecord(offset, name);
+      if (data != null) {
+        if (result == null) {
+          result = new ArrayList<byte[]>(2);
+        }
+        result.add(data);
+      }
+    }
+    return result;
+  }
+
+  /** Returns a buffer positioned where the record goes, or null if memory is full */
+  private ByteBuffer allocateInMemory(int size) {
+    if (size > chunkSize) {
+      return null;
+    }
+    ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+    if (chunk == null || chunk.remaining() < size) {
+      if (directMemoryExhausted || 
+          (long) (chunks.size() + 1) * chunkSize > memoryBudget) {
+        return null;
+      }
+      try {
+        chunk = ByteBuffer.allocateDirect(chunkSize);
+      } catch (OutOfMemoryError ex) {
+        // The budget is more than -XX:MaxDirectMemorySize allows.
+        LOG.warning("Out of direct memory after " + memorySize + 
+            " bytes of unmapped mates, spilling the rest to disk: " + ex.getMessage());
+        directMemoryExhausted = true;
+        return null;
+      }
+      chunks.add(chunk);
+    }
+    return chunk;
+  }
+
+  private static void writeRecord(ByteBuffer buffer, byte[] name, byte[] data) {
+    buffer.putShort((short) name.length);
+    buffer.putInt(data.length);
+    buffer.put(name);
+    buffer.put(data);
+  }
+
+  /** Returns the data of the record at offset if it has the given name */
+  private byte[] readRecord(long offset, byte[] name) throws IOException {
+    final ByteBuffer header;
+    long position = 0;
+    ByteBuffer chunk = null;
+    if ((offset & SPILLED) == 0) {
+      chunk = chunks.get((int) (offset / chunkSize)).duplicate();
+      chunk.position((int) (offset % chunkSize));
+      header = chunk;
+    } else {
+      position = offset & ~SPILLED;
+      header = readSpill(position, HEADER_SIZE);
+      position += HEADER_SIZE;
+    }
+    final int nameLength = header.getShort();
+    final int dataLength = header.getInt();
+    if (nameLength != name.length) {
+      return null;
+    }
+    final byte[] storedName = new byte[nameLength];
+    final byte[] data = new byte[dataLength];
+    final ByteBuffer body = chunk != null ? chunk :
+      readSpill(position, nameLength + dataLength);
+    body.get(storedName);
+    if (!Arrays.equals(storedName, name)) {
+      return null;
+    }
+    body.get(data);
+    return data;
+  }
+
+  private ByteBuffer readSpill(long position, int length) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (spill.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of spill file " + spillFile);
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  @SuppressWarnings("resource")
+  private FileChannel getSpill() throws IOException {
+    if (spill == null) {
+      spillFile = File.createTempFile("ga4gh-unmapped-mates", ".bin", spillDirectory);
+      spillFile.deleteOnExit();
+      LOG.info("Unmapped mates exceed the memory budget of " + memoryBudget +
+          " bytes, spilling to " + spillFile);
+      spill = new RandomAccessFile(spillFile, "rw").getChannel();
+    }
+    return spill;
+  }
+
+  /** Returns a complete record, header included */
+  private byte[] readRawRecord(long offset) throws IOException {
+    if ((offset & SPILLED) == 0) {
+      final ByteBuffer chunk = chunks.get((int) (offset / chunkSize)).duplicate();
+      final int position = (int) (offset % chunkSize);
+      chunk.position(position);
+      final int size = HEADER_SIZE + chunk.getShort() + chunk.getInt();
+      chunk.position(position);
+      final byte[] record = new byte[size];
+      chunk.get(record);
+      return record;
+    }
+    final long position = offset & ~SPILLED;
+    final ByteBuffer header = readSpill(position, HEADER_SIZE);
+    final int size = HEADER_SIZE + header.getShort() + header.getInt();
+    return readSpill(position, size).array();
+  }
+
+  /**
+   * Saves all records and indexes to a file, which is replaced atomically.
+   * Records are laid out so that none crosses a memory-mapped region of open.
+   */
+  public synchronized void save(File file) throws IOException {
+    checkNotClosed();
+    final File temp = File.createTempFile(file.getName(), ".tmp", 
+        file.getAbsoluteFile().getParentFile());
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp), 1 << 20));
+      try {
+        long position = 0;
+        final Map<String, Index> savedIndexes = new HashMap<String, Index>();
+        for (Map.Entry<String, Index> entry : indexes.entrySet()) {
+          final Index index = entry.getValue();
+          final Index saved = new Index();
+          for (int slot : index.slotsInProbeOrder()) {
+            final byte[] record = readRawRecord(index.offsets[slot] - 1);
+            final long chunkEnd = (position / MAPPED_CHUNK_SIZE + 1) * MAPPED_CHUNK_SIZE;
+            if (position + record.length > chunkEnd) {
+              out.write(new byte[(int) (chunkEnd - position)]);
+              position = chunkEnd;
+            }
+            out.write(record);
+            saved.add(index.hashes[slot], position);
+            position += record.length;
+          }
+          savedIndexes.put(entry.getKey(), saved);
+        }
+        out.writeInt(savedIndexes.size());
+        for (Map.Entry<String, Index> entry : savedIndexes.entrySet()) {
+          out.writeUTF(entry.getKey());
+          entry.getValue().writeTo(out);
+        }
+        out.writeLong(recordCount);
+        out.writeLong(position);
+        out.writeLong(FILE_MAGIC);
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(file)) {
+        file.delete();
+        if (!temp.renameTo(file)) {
+          throw new IOException("Can not rename " + temp + " to " + file);
+        }
+      }
+      LOG.info("Saved " + recordCount + " unmapped mates to " + file);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Opens a store saved with save, read-only. Records are memory-mapped
+   * and only the indexes are read into the heap.
+   */
+  public static OffHeapMateStore open(File file) throws IOException {
+    final RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      final long length = input.length();
+      if (length < 24) {
+        throw new IOException("Not a saved mate store: " + file);
+      }
+      input.seek(length - 24);
+      final long recordCount = input.readLong();
+      final long recordsSize = input.readLong();
+      if (input.readLong() != FILE_MAGIC) {
+        throw new IOException("Not a saved mate store: " + file);
+      }
+      final FileChannel channel = input.getChannel();
+      final List<ByteBuffer> mapped = new ArrayList<ByteBuffer>();
+      for (long start = 0; start < recordsSize; start += MAPPED_CHUNK_SIZE) {
+        mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(MAPPED_CHUNK_SIZE, recordsSize - start)));
+      }
+      input.seek(recordsSize);
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(
+          Channels.newInputStream(channel), 1 << 20));
+      final int indexCount = in.readInt();
+      final Map<String, Index> indexes = new HashMap<String, Index>();
+      for (int i = 0; i < indexCount; i++) {
+        final String reference = in.readUTF();
+        indexes.put(reference, Index.readFrom(in));
+      }
+      LOG.info("Opened " + recordCount + " unmapped mates from " + file);
+      return new OffHeapMateStore(mapped, indexes, recordCount, recordsSize);
+    } finally {
+      // Mappings stay valid after the file is closed.
+      input.close();
+    }
+  }
+
+  public synchronized long getRecordCount() {
+    return recordCount;
+  }
+
+  /** Bytes of records held in direct memory */
+  public synchronized long getMemoryBytes() {
+    return memorySize;
+  }
+
+  /** Bytes of records spilled to disk */
+  public synchronized long getSpilledBytes() {
+    return spillSize;
+  }
+
+  /**
+   * Drops the stored records, freeing their memory, and deletes the spill file.
+   * Lookups then find nothing. Closing more than once has no effect.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    // Lookups hold the lock, so no one reads the buffers while they are freed.
+    for (ByteBuffer chunk : chunks) {
+      free(chunk);
+    }
+    chunks.clear();
+    indexes.clear();
+    if (spill != null) {
+      try {
+        spill.close();
+      } catch (IOException ex) {
+        LOG.warning("Failed to close spill file " + spillFile + ": " + ex);
+      }
+      spillFile.delete();
+      spill = null;
+    }
+  }
+
+  private void checkNotClosed() throws IOException {
+    if (closed) {
+      throw new IOException("Unmapped mates store is closed");
+    }
+  }
+
+  /**
+   * Releases the memory of a direct or memory-mapped buffer now, instead of
+   * when it is collected, where the JVM allows it. The buffer must not be
+   * used afterwards.
+   */
+  private static void free(ByteBuffer buffer) {
+    if (!buffer.isDirect() || cleanerUnavailable) {
+      return;
+    }
+    try {
+      final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      final Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        final Method cleanMethod = cleaner.getClass().getMethod("clean");
+        cleanMethod.setAccessible(true);
+        cleanMethod.invoke(cleaner);
+      }
+    } catch (Exception ex) {
+      // Left to the garbage collector.
+      cleanerUnavailable = true;
+      LOG.fine("Can not free direct buffers explicitly: " + ex);
+    }
+  }
+
+  /**
+   * Open addressing hash table from fragment name hashes to record offsets.
+   * Keys may repeat, one entry is kept per record.
+   */
+  private static class Index {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] hashes = new long[INITIAL_CAPACITY];
+    /** Record offset plus one, 0 marks an empty slot */
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private int size;
+
+    void add(long hash, long offset) {
+      if ((size + 1) * 2 > offsets.length) {
+        grow();
+      }
+      insert(hash, offset + 1);
+      size++;
+    }
+
+    private void insert(long hash, long storedOffset) {
+      final int mask = offsets.length - 1;
+      int slot = slotOf(hash, mask);
+      while (offsets[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      hashes[slot] = hash;
+      offsets[slot] = storedOffset;
+    }
+
+    private void grow() {
+      final long[] oldHashes = hashes;
+      final long[] oldOffsets = offsets;
+      final int[] slots = slotsInProbeOrder();
+      hashes = new long[oldHashes.length * 2];
+      offsets = new long[oldOffsets.length * 2];
+      for (int slot : slots) {
+        insert(oldHashes[slot], oldOffsets[slot]);
+      }
+    }
+
+    /**
+     * Returns the used slots starting after an empty one, re-inserting entries
+     * in this order keeps equal keys in insertion order, since they are probed
+     * in the same sequence.
+     */
+    int[] slotsInProbeOrder() {
+      final int mask = offsets.length - 1;
+      int start = 0;
+      while (start < offsets.length && offsets[start] != 0) {
+        start++;
+      }
+      final int[] slots = new int[size];
+      int count = 0;
+      for (int i = 0; i < offsets.length; i++) {
+        final int slot = (start + i) & mask;
+        if (offsets[slot] != 0) {
+          slots[count++] = slot;
+        }
+      }
+      return slots;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.writeInt(size);
+      out.writeInt(offsets.length);
+      for (int i = 0; i < offsets.length; i++) {
+        out.writeLong(hashes[i]);
+        out.writeLong(offsets[i]);
+      }
+    }
+
+    static Index readFrom(DataInputStream in) throws IOException {
+      final Index index = new Index();
+      index.size = in.readInt();
+      final int capacity = in.readInt();
+      index.hashes = new long[capacity];
+      index.offsets = new long[capacity];
+      for (int i = 0; i < capacity; i++) {
+        index.hashes[i] = in.readLong();
+        index.offsets[i] = in.readLong();
+      }
+      return index;
+    }
+
+    /** Returns offsets of records with the hash, in insertion order */
+    long[] find(long hash) {
+      final int mask = offsets.length - 1;
+      int slot = slotOf(hash, mask);
+      long[] found = null;
+      int count = 0;
+      while (offsets[slot] != 0) {
+        if (hashes[slot] == hash) {
+          if (found == null) {
+            found = new long[2];
+          } else if (count == found.length) {
+            found = Arrays.copyOf(found, count * 2);
+          }
+          found[count++] = offsets[slot] - 1;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return found == null ? new long[0] : Arrays.copyOf(found, count);
+    }
+
+    private static int slotOf(long hash, int mask) {
+      return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+  }
+}
@@ -0,0 +1,288 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Drains an underlying Iterable on a producer thread into a bounded buffer,
+ * so that fetching data from the network overlaps with its consumption.
+ * The buffer can be bounded by the number of items, by their estimated size
+ * in bytes, or both.
+ * Queue depth and stall counts are exposed for tuning and logged once the
+ * iteration is over.
+ */
+public class ReadAheadIterable<T> implements Iterable<T> {
+  private static final Logger LOG = Logger.getLogger(ReadAheadIterable.class.getName());
+
+  /**
+   * Estimates the memory taken by a buffered item.
+   */
+  public interface Sizer<T> {
+    public long sizeOf(T item);
+  }
+
+  private final Iterable<T> source;
+  private final int maxItems;
+  private final long maxBytes;
+  private final Sizer<T> sizer;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final ArrayDeque<T> buffer = new ArrayDeque<T>();
+  private long bufferedBytes;
+  private boolean finished;
+  private boolean closed;
+  private Throwable error;
+
+  private long producedItems;
+  private long producerStalls;
+  private long consumerStalls;
+  private int maxDepth;
+  private long maxDepthBytes;
+
+  private volatile Thread producer;
+
+  /**
+   * @param maxItems maximum number of buffered items, 0 for no limit.
+   * @param maxBytes maximum estimated size of buffered items, 0 for no limit.
+   * @param sizer estimates item sizes, only used if maxBytes is set.
+   */
+  public ReadAheadIterable(Iterable<T> source, int maxItems, long maxBytes,
+      Sizer<T> sizer) {
+    if (maxItems <= 0 && maxBytes <= 0) {
+      throw new IllegalArgumentException("Read-ahead buffer has to be bounded");
+    }
+    this.source = source;
+    this.maxItems = maxItems > 0 ? maxItems : Integer.MAX_VALUE;
+    this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    this.sizer = sizer;
+  }
+
+  /**
+   * Starts the producer and returns the consuming iterator.
+   * Like the network backed iterables it wraps, this can be iterated only once.
+   */
+  @Override
+  public Iterator<T> iterator() {
+    producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        produce();
+      }
+    }, "ga4gh-read-ahead");
+    producer.setDaemon(true);
+    producer.start();
+    return new Iterator<T>() {
+      private T next = take();
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public T next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        T toReturn = next;
+        next = take();
+        return toReturn;
+      }
+
+      @Override
+      public void remove() {
+        // Not implemented
+      }
+    };
+  }
+
+  private void produce() {
+    try {
+      for (T item : source) {
+        final long size = maxBytes != Long.MAX_VALUE ? sizer.sizeOf(item) : 0;
+        lock.lockInterruptibly();
+        try {
+          // Always admit an item into an empty buffer, even a huge one,
+          // or we would never make progress.
+          if (isFull()) {
+            producerStalls++;
+            do {
+              notFull.await();
+            } while (isFull());
+          }
+          if (closed) {
+            return;
+          }
+          buffer.addLast(item);
+          bufferedBytes += size;
+          producedItems++;
+          maxDepth = Math.max(maxDepth, buffer.size());
+          maxDepthBytes = Math.max(maxDepthBytes, bufferedBytes);
+          notEmpty.signal();
+        } finally {
+          lock.unlock();
+        }
+      }
+      finish(null);
+    } catch (InterruptedException ex) {
+      finish(ex);
+    } catch (Throwable ex) {
+      LOG.warning("Read-ahead producer failed: " + ex);
+      finish(ex);
+    }
+  }
+
+  private boolean isFull() {
+    return !buffer.isEmpty() &&
+        (buffer.size() >= maxItems || bufferedBytes >= maxBytes);
+  }
+
+  private void finish(Throwable ex) {
+    lock.lock();
+    try {
+      finished = true;
+      error = ex;
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the next item or null at the end of iteration. */
+  private T take() {
+    lock.lock();
+    try {
+      if (buffer.isEmpty() && !finished && !closed) {
+        consumerStalls++;
+        do {
+          notEmpty.await();
+        } while (buffer.isEmpty() && !finished && !closed);
+      }
+      if (closed) {
+        return null;
+      }
+      if (buffer.isEmpty()) {
+        if (error != null) {
+          throw new RuntimeException("Reading ahead failed", error);
+        }
+        logStats();
+        return null;
+      }
+      final T item = buffer.removeFirst();
+      if (maxBytes != Long.MAX_VALUE) {
+        bufferedBytes -= sizer.sizeOf(item);
+      }
+      notFull.signal();
+      return item;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for reads", ex);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops the producer and drops buffered items. May be called from any thread,
+   * the consuming iterator then ends instead of failing.
+   */
+  public void close() {
+    if (producer != null) {
+      producer.interrupt();
+    }
+    lock.lock();
+    try {
+      closed = true;
+      buffer.clear();
+      bufferedBytes = 0;
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Number of items currently buffered. */
+  public int getQueueDepth() {
+    lock.lock();
+    try {
+      return buffer.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Estimated size of items currently buffered. */
+  public long getQueueBytes() {
+    lock.lock();
+    try {
+      return bufferedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Largest number of items buffered so far. */
+  public int getMaxQueueDepth() {
+    lock.lock();
+    try {
+      return maxDepth;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Number of times the producer waited for a full buffer to drain,
+   * high values mean the consumer is the bottleneck.
+   */
+  public long getProducerStalls() {
+    lock.lock();
+    try {
+      return producerStalls;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Number of times the consumer waited for an empty buffer to fill,
+   * high values mean the network is the bottleneck.
+   */
+  public long getConsumerStalls() {
+    lock.lock();
+    try {
+      return consumerStalls;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void logStats() {
+    LOG.info("Read-ahead done: " + producedItems + " reads, max depth " +
+        maxDepth + " reads" +
+        (maxBytes != Long.MAX_VALUE ? " / " + maxDepthBytes + " bytes" : "") +
+        ", producer stalls " + producerStalls +
+        ", consumer stalls " + consumerStalls);
+  }
+}
@@ -0,0 +1,221 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The parts of each reference a readset has reads on, built from the coverage
+ * buckets of the API. Ranges are 0-based and half-open like those of the API,
+ * adjacent covered buckets are merged into a single range.
+ * Saved to a local file keyed by readset id and data version, so the buckets
+ * are fetched once per readset.
+ */
+public class ReadCoverage {
+  /** Identifies the coverage file format */
+  private static final int MAGIC = 0x47414356;
+
+  /** Starts and ends of the covered ranges of each reference, sorted */
+  private final Map<String, int[][]> ranges;
+
+  private ReadCoverage(Map<String, int[][]> ranges) {
+    this.ranges = ranges;
+  }
+
+  /**
+   * Collects covered buckets, in any order.
+   */
+  public static class Builder {
+    private final Map<String, List<int[]>> buckets = new HashMap<String, List<int[]>>();
+
+    /** Adds a bucket, buckets without coverage are ignored. */
+    public Builder add(String referenceName, long start, long end, float meanCoverage) {
+      if (meanCoverage <= 0 || end <= start) {
+        return this;
+      }
+      List<int[]> referenceBuckets = buckets.get(referenceName);
+      if (referenceBuckets == null) {
+        referenceBuckets = new ArrayList<int[]>();
+        buckets.put(referenceName, referenceBuckets);
+      }
+      referenceBuckets.add(new int[] { 
+          (int) Math.min(Integer.MAX_VALUE, start), 
+          (int) Math.min(Integer.MAX_VALUE, end) });
+      return this;
+    }
+
+    public ReadCoverage build() {
+      final Map<String, int[][]> ranges = new HashMap<String, int[][]>();
+      for (Map.Entry<String, List<int[]>> entry : buckets.entrySet()) {
+        final List<int[]> referenceBuckets = entry.getValue();
+        Collections.sort(referenceBuckets, new Comparator<int[]>() {
+          @Override
+          public int compare(int[] a, int[] b) {
+            return Integer.compare(a[0], b[0]);
+          }
+        });
+        final List<int[]> merged = new ArrayList<int[]>();
+        int[] current = null;
+        for (int[] bucket : referenceBuckets) {
+          if (current != null && bucket[0] <= current[1]) {
+            current[1] = Math.max(current[1], bucket[1]);
+          } else {
+            current = bucket.clone();
+            merged.add(current);
+          }
+        }
+        final int[][] referenceRanges = new int[2][merged.size()];
+        for (int i = 0; i < merged.size(); i++) {
+          referenceRanges[0][i] = merged.get(i)[0];
+          referenceRanges[1][i] = merged.get(i)[1];
+        }
+        ranges.put(entry.getKey(), referenceRanges);
+      }
+      return new ReadCoverage(ranges);
+    }
+  }
+
+  /** Returns the references with reads */
+  public Set<String> getReferenceNames() {
+    return ranges.keySet();
+  }
+
+  /** Returns the number of covered ranges of the reference */
+  public int getRangeCount(String referenceName) {
+    final int[][] referenceRanges = ranges.get(referenceName);
+    return referenceRanges == null ? 0 : referenceRanges[0].length;
+  }
+
+  public int getRangeStart(String referenceName, int range) {
+    return ranges.get(referenceName)[0][range];
+  }
+
+  public int getRangeEnd(String referenceName, int range) {
+    return ranges.get(referenceName)[1][range];
+  }
+
+  /**
+   * Returns the index of the first covered range of the reference ending
+   * after the position, which is the range count if there is none.
+   */
+  public int findRange(String referenceName, int position) {
+    final int[][] referenceRanges = ranges.get(referenceName);
+    if (referenceRanges == null) {
+      return 0;
+    }
+    final int index = Arrays.binarySearch(referenceRanges[1], position);
+    // Ends are exclusive, so a range ending at the position is before it.
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  /**
+   * Returns true if reads may overlap the range.
+   */
+  public boolean isCovered(String referenceName, int start, int end) {
+    final int range = findRange(referenceName, start);
+    return range < getRangeCount(referenceName) &&
+        getRangeStart(referenceName, range) < end;
+  }
+
+  /**
+   * Returns the file the coverage of a readset is saved to in the directory.
+   */
+  public static File getFile(File directory, String readsetId, String dataVersion,
+      int bucketWidth) throws IOException {
+    return new File(directory, URLEncoder.encode(readsetId, "UTF-8") + "-" + 
+        dataVersion + "-" + bucketWidth);
+  }
+
+  public static ReadCoverage load(File file) throws IOException {
+    final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a coverage file");
+      }
+      final int referenceCount = in.readInt();
+      final Map<String, int[][]> ranges = new HashMap<String, int[][]>();
+      for (int i = 0; i < referenceCount; i++) {
+        final String referenceName = in.readUTF();
+        final int[][] referenceRanges = new int[2][in.readInt()];
+        for (int j = 0; j < referenceRanges[0].length; j++) {
+          referenceRanges[0][j] = in.readInt();
+          referenceRanges[1][j] = in.readInt();
+        }
+        ranges.put(referenceName, referenceRanges);
+      }
+      return new ReadCoverage(ranges);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes to a temporary file first so concurrent runs never see
+   * a partially written file.
+   */
+  public void save(File file) throws IOException {
+    final File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new IOException("Can not create directory " + parent);
+    }
+    final File temp = File.createTempFile(file.getName(), ".tmp", parent);
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(ranges.size());
+        for (Map.Entry<String, int[][]> entry : ranges.entrySet()) {
+          out.writeUTF(entry.getKey());
+          final int[][] referenceRanges = entry.getValue();
+          out.writeInt(referenceRanges[0].length);
+          for (int j = 0; j < referenceRanges[0].length; j++) {
+            out.writeInt(referenceRanges[0][j]);
+            out.writeInt(referenceRanges[1][j]);
+          }
+        }
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(file)) {
+        // Windows does not replace existing files on rename.
+        file.delete();
+        if (!temp.renameTo(file)) {
+          throw new IOException("Can not rename " + temp + " to " + file);
+        }
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+}
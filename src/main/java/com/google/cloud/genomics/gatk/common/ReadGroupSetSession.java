@@ -0,0 +1,82 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import htsjdk.samtools.SAMFileHeader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Metadata of a readset resolved once and shared by all the queries against it:
+ * the ReadGroupSet, its references and the SAMFileHeader built from them.
+ * Obtained from GenomicsDataSource.openSession and passed to getReads, so
+ * querying many intervals does not re-fetch metadata or rebuild the header.
+ */
+public class ReadGroupSetSession<Read, ReadGroupSet, Reference> {
+  private final String readsetId;
+  private final ReadGroupSet readGroupSet;
+  private final Map<String, Reference> references;
+  private final List<Reference> referenceList;
+  private final GenomicsConverter<Read, ReadGroupSet, Reference> converter;
+  private SAMFileHeader header;
+
+  public ReadGroupSetSession(String readsetId, ReadGroupSet readGroupSet,
+      Map<String, Reference> references,
+      GenomicsConverter<Read, ReadGroupSet, Reference> converter) {
+    this.readsetId = readsetId;
+    this.readGroupSet = readGroupSet;
+    this.references = references;
+    this.referenceList = new ArrayList<Reference>(references.values());
+    this.converter = converter;
+  }
+
+  public String getReadsetId() {
+    return readsetId;
+  }
+
+  public ReadGroupSet getReadGroupSet() {
+    return readGroupSet;
+  }
+
+  /** Returns the reference with the given name, or null if there is none */
+  public Reference getReference(String name) {
+    return references.get(name);
+  }
+
+  public List<Reference> getReferences() {
+    return referenceList;
+  }
+
+  /**
+   * Returns the converter shared by all the queries of the session, 
+   * so its per-header lookups are built once.
+   */
+  public GenomicsConverter<Read, ReadGroupSet, Reference> getConverter() {
+    return converter;
+  }
+
+  /**
+   * Returns the header, building it on first use.
+   */
+  public synchronized SAMFileHeader getSAMFileHeader() {
+    if (header == null) {
+      header = converter.makeSAMFileHeader(readGroupSet, referenceList);
+    }
+    return header;
+  }
+}
@@ -41,4 +41,10 @@ public interface ReadIteratorResource<Read, ReadGroupSet, Reference> {
   public SAMFileHeader getSAMFileHeader();
   
   public Iterable<SAMRecord> getSAMRecordIterable();
+  
+  /**
+   * Stops fetching reads, cancelling requests still in flight. Used when 
+   * the iteration is abandoned before the end.
+   */
+  public void close();
 }
@@ -19,11 +19,18 @@ import htsjdk.samtools.SAMRecordCoordinateComparator;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -45,6 +52,20 @@ public abstract class ReadIteratorResourceBase<Read, ReadGroupSet, Reference>
   private SAMRecord recordAtNextPosition;
   private static Comparator<SAMRecord> samRecordCoordinateComparator = new SAMRecordCoordinateComparator();
   private GenomicsConverter<Read, ReadGroupSet, Reference> converter;
+  private ReadAheadIterable<Read> readAhead;
+  /** The reads as provided by the data source, before read-ahead */
+  private Iterable<Read> source;
+  private ExecutorService conversionExecutor;
+  private int maxPendingBatches;
+  private volatile boolean closed;
+  
+  /** Number of reads converted by one conversion task */
+  private static final int CONVERSION_BATCH_SIZE = 256;
+  
+  /** Fix-ups applied to converted records, see makeSAMRecord */
+  private static final int FIXUP_NONE = 0;
+  private static final int FIXUP_UNMAPPED_MATE = 1;
+  private static final int FIXUP_MAPPED_MATE = 2;
   
   public ReadIteratorResourceBase(ReadGroupSet readGroupSet, List<Reference> references,
       UnmappedReads<Read> unmappedReads, 
@@ -55,8 +76,21 @@ public abstract class ReadIteratorResourceBase<Read, ReadGroupSet, Reference>
     this.references = references;
     this.unmappedReads = unmappedReads;
     this.iterable = iterable;
+    this.source = iterable;
     this.converter = converter;
   }
+  
+  /**
+   * Makes a resource sharing the metadata and header of a session.
+   */
+  public ReadIteratorResourceBase(ReadGroupSetSession<Read, ReadGroupSet, Reference> session,
+      UnmappedReads<Read> unmappedReads, 
+      Iterable<Read> iterable, 
+      GenomicsConverter<Read, ReadGroupSet, Reference> converter) {
+    this(session.getReadGroupSet(), session.getReferences(), unmappedReads, 
+        iterable, converter);
+    this.cachedSAMFileHeader = session.getSAMFileHeader();
+  }
 
   @Override
   public ReadGroupSet getReadGroupSet() {
@@ -86,6 +120,73 @@ public abstract class ReadIteratorResourceBase<Read, ReadGroupSet, Reference>
   @Override
   public void setIterable(Iterable<Read> iterable) {
     this.iterable = iterable;
+    this.source = iterable;
+  }
+  
+  /**
+   * Makes iteration drain the underlying reads on a separate thread into a buffer
+   * holding up to maxReads reads and/or maxBytes bytes (0 for no limit), 
+   * so network time overlaps with conversion and consumption of the records.
+   */
+  public void enableReadAhead(int maxReads, long maxBytes) {
+    readAhead = new ReadAheadIterable<Read>(iterable, maxReads, maxBytes,
+        new ReadAheadIterable.Sizer<Read>() {
+          @Override
+          public long sizeOf(Read read) {
+            return estimateReadSize(read);
+          }
+        });
+    iterable = readAhead;
+  }
+  
+  /**
+   * Makes iteration convert reads to SAMRecords in batches on the executor,
+   * keeping up to 2 batches per thread in flight. Records are returned in the
+   * order of the reads.
+   * Has no effect unless the converter is thread safe.
+   */
+  public void enableParallelConversion(ExecutorService executor, int threads) {
+    if (!converter.isThreadSafe()) {
+      LOG.warning("Converting reads on the consuming thread, " + 
+          converter.getClass().getSimpleName() + " is not thread safe");
+      return;
+    }
+    conversionExecutor = executor;
+    maxPendingBatches = Math.max(1, threads) * 2;
+  }
+  
+  /**
+   * Stops the read-ahead and the background scan of unmapped mates, drops
+   * the collected mates and, if the source of reads can be closed, cancels its requests still in flight.
+   * May be called from any thread, iteration of the records then ends.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (unmappedReads != null) {
+      unmappedReads.close();
+    }
+    if (readAhead != null) {
+      readAhead.close();
+    }
+    if (source instanceof Closeable) {
+      try {
+        ((Closeable) source).close();
+      } catch (IOException ex) {
+        LOG.warning("Failed to close reads source: " + ex);
+      }
+    }
+  }
+  
+  /**
+   * Returns the read-ahead stage, for its queue depth and stall statistics,
+   * or null if read-ahead is not enabled.
+   */
+  public ReadAheadIterable<Read> getReadAhead() {
+    return readAhead;
   }
   
   @Override
@@ -105,10 +206,17 @@ public abstract class ReadIteratorResourceBase<Read, ReadGroupSet, Reference>
       @Override
       public Iterator<SAMRecord> iterator() {
         return new Iterator<SAMRecord>() {
-          private SAMRecord nextRecord = peek();
           private Read mappedRead;
           private final boolean injectingUnmappedPairsOfMappedRead = 
               unmappedReads != null;
+          private boolean unmappedStatsLogged;
+          private final ArrayDeque<Future<SAMRecord[]>> pendingBatches = 
+              new ArrayDeque<Future<SAMRecord[]>>();
+          private SAMRecord[] currentBatch;
+          private int currentBatchIndex;
+          private boolean readsExhausted;
+          // Initialized last, peek() relies on the fields above.
+          private SAMRecord nextRecord = peek();
           
           @Override
           public boolean hasNext() {
@@ -175,33 +283,104 @@ public abstract class ReadIteratorResourceBase<Read, ReadGroupSet, Reference>
            * conversion and fixup of unmapped pairs of mapped reads.
            */
           private SAMRecord getNextSAMRecord() {
+            if (closed) {
+              cancelPendingBatches();
+              return null;
+            }
+            if (conversionExecutor != null) {
+              return getNextConvertedRecord();
+            }
             Read nextRead = getNextRead();
             
             if (nextRead == null) {
               return null;
             }
             
-            SAMRecord record = converter.makeSAMRecord(nextRead, 
-                header);
-            
-            // See https://github.com/ga4gh/schemas/issues/224
-            // We fix up both the mapped read of unmapped mate pair and the mate 
-            // pair itself according to SAM best practices:
-            // "For a unmapped paired-end or mate-pair read whose mate is mapped, 
-            // the unmapped read should have RNAME and POS identical to its mate."
+            return makeSAMRecord(nextRead, getFixup(nextRead), 
+                getMappedMateReferenceName(nextRead), header);
+          }
+          
+          /** Returns how the record of a read just returned by getNextRead is fixed up */
+          private int getFixup(Read nextRead) {
             if (unmappedMatesIterator != null && mappedRead != null) {
-              if (mappedRead != nextRead) {
-                record.setReferenceName(getReferenceNameFromRead(mappedRead));
-                record.setAlignmentStart(record.getMateAlignmentStart());
-                record.setReadNegativeStrandFlag(record.getMateNegativeStrandFlag());
-              } else {
-                record.setMateReferenceName(record.getReferenceName());
-                record.setMateAlignmentStart(record.getAlignmentStart());
-                record.setMateNegativeStrandFlag(record.getReadNegativeStrandFlag()); 
+              return mappedRead != nextRead ? FIXUP_UNMAPPED_MATE : FIXUP_MAPPED_MATE;
+            }
+            return FIXUP_NONE;
+          }
+          
+          private String getMappedMateReferenceName(Read nextRead) {
+            if (unmappedMatesIterator != null && mappedRead != null && 
+                mappedRead != nextRead) {
+              return getReferenceNameFromRead(mappedRead);
+            }
+            return null;
+          }
+          
+          /**
+           * Returns records converted in batches on the conversion executor.
+           * Batches are submitted ahead and consumed in submission order,
+           * so the order of reads is preserved.
+           */
+          private SAMRecord getNextConvertedRecord() {
+            while (currentBatch == null || currentBatchIndex >= currentBatch.length) {
+              submitBatches();
+              final Future<SAMRecord[]> batch = pendingBatches.pollFirst();
+              if (batch == null) {
+                return null;
               }
+              try {
+                currentBatch = batch.get();
+              } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while converting reads", ex);
+              } catch (ExecutionException ex) {
+                throw new RuntimeException("Failed to convert reads", ex.getCause());
+              }
+              currentBatchIndex = 0;
+            }
+            return currentBatch[currentBatchIndex++];
+          }
+          
+          /** Drops the conversions of a closed resource */
+          private void cancelPendingBatches() {
+            for (Future<SAMRecord[]> batch : pendingBatches) {
+              batch.cancel(false);
+            }
+            pendingBatches.clear();
+            currentBatch = null;
+          }
+          
+          private void submitBatches() {
+            while (!readsExhausted && !closed && 
+                pendingBatches.size() < maxPendingBatches) {
+              final List<Read> reads = new ArrayList<Read>(CONVERSION_BATCH_SIZE);
+              final int[] fixups = new int[CONVERSION_BATCH_SIZE];
+              final String[] mappedMateReferenceNames = new String[CONVERSION_BATCH_SIZE];
+              while (reads.size() < CONVERSION_BATCH_SIZE) {
+                final Read nextRead = getNextRead();
+                if (nextRead == null) {
+                  readsExhausted = true;
+                  break;
+                }
+                fixups[reads.size()] = getFixup(nextRead);
+                mappedMateReferenceNames[reads.size()] = getMappedMateReferenceName(nextRead);
+                reads.add(nextRead);
+              }
+              if (reads.isEmpty()) {
+                break;
+              }
+              pendingBatches.addLast(conversionExecutor.submit(new Callable<SAMRecord[]>() {
+                @Override
+                public SAMRecord[] call() {
+                  final SAMRecord[] records = new SAMRecord[reads.size()];
+                  for (int i = 0; i < records.length; i++) {
+                    records[i] = makeSAMRecord(reads.get(i), fixups[i], 
+                        mappedMateReferenceNames[i], header);
+                  }
+                  return records;
+                }
+              }));
             }
-            
-            return record;
           }
           
           /**
@@ -252,16 +431,24 @@ public abstract class ReadIteratorResourceBase<Read, ReadGroupSet, Reference>
                   if (readIterator.hasNext()) {
                     result = readIterator.next();
                   } else {
-                    return null;
+                    return endOfReads();
                   }
                 }
               }
             } else {
-              return null;
+              return endOfReads();
             }
             return result;
           }
           
+          private Read endOfReads() {
+            if (injectingUnmappedPairsOfMappedRead && !unmappedStatsLogged) {
+              unmappedReads.logStats();
+              unmappedStatsLogged = true;
+            }
+            return null;
+          }
+          
           @Override
           public void remove() {
             LOG.warning("ReadIteratorResource does not implement remove() method");
@@ -271,5 +458,32 @@ public abstract class ReadIteratorResourceBase<Read, ReadGroupSet, Reference>
     };
   }
   
+  /**
+   * Converts a read and applies the fix-up of unmapped mate pairs, see
+   * https://github.com/ga4gh/schemas/issues/224
+   * We fix up both the mapped read of unmapped mate pair and the mate 
+   * pair itself according to SAM best practices:
+   * "For a unmapped paired-end or mate-pair read whose mate is mapped, 
+   * the unmapped read should have RNAME and POS identical to its mate."
+   * Only depends on its arguments, so it can run on any thread.
+   */
+  private SAMRecord makeSAMRecord(Read read, int fixup, String mappedMateReferenceName,
+      SAMFileHeader header) {
+    final SAMRecord record = converter.makeSAMRecord(read, header);
+    if (fixup == FIXUP_UNMAPPED_MATE) {
+      record.setReferenceName(mappedMateReferenceName);
+      record.setAlignmentStart(record.getMateAlignmentStart());
+      record.setReadNegativeStrandFlag(record.getMateNegativeStrandFlag());
+    } else if (fixup == FIXUP_MAPPED_MATE) {
+      record.setMateReferenceName(record.getReferenceName());
+      record.setMateAlignmentStart(record.getAlignmentStart());
+      record.setMateNegativeStrandFlag(record.getReadNegativeStrandFlag()); 
+    }
+    return record;
+  }
+  
   abstract protected String getReferenceNameFromRead(Read read);
+  
+  /** Estimates the memory taken by a read, used for sizing read-ahead buffers */
+  abstract protected long estimateReadSize(Read read);
 }
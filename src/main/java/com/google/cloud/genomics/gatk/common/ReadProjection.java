@@ -0,0 +1,72 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import java.util.Arrays;
+
+/**
+ * Fields of reads a query needs, so tools that never look at bases,
+ * qualities or tags do not pay for fetching and converting them.
+ * The REST API turns it into a partial response mask, and the converters
+ * skip the omitted fields.
+ * Names, flags, positions, CIGAR, mates and read groups are always included.
+ */
+public enum ReadProjection {
+  /** All fields */
+  ALL(true, true, true),
+  /** No base qualities */
+  NO_QUALITIES(true, false, true),
+  /** No info tags */
+  NO_TAGS(true, true, false),
+  /** Neither base qualities nor info tags */
+  NO_QUALITIES_OR_TAGS(true, false, false),
+  /** No bases, qualities or tags */
+  POSITIONS_AND_FLAGS(false, false, false);
+
+  private final boolean sequence;
+  private final boolean qualities;
+  private final boolean tags;
+
+  private ReadProjection(boolean sequence, boolean qualities, boolean tags) {
+    this.sequence = sequence;
+    this.qualities = qualities;
+    this.tags = tags;
+  }
+
+  public boolean includesSequence() {
+    return sequence;
+  }
+
+  public boolean includesQualities() {
+    return qualities;
+  }
+
+  public boolean includesTags() {
+    return tags;
+  }
+
+  /**
+   * Parses a projection name, case insensitive, e.g. "no_qualities".
+   */
+  public static ReadProjection fromString(String name) {
+    try {
+      return valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException ex) {
+      throw new IllegalArgumentException("Unknown read projection " + name + 
+          ", expected one of " + Arrays.toString(values()));
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Caches the references of reference sets, in memory and in a local directory
+ * so they survive across runs. Reference sets are immutable, so entries never
+ * expire.
+ * Missing reference sets are fetched with concurrent per-reference requests.
+ * Subclasses provide the API calls and the serialization of references.
+ */
+public abstract class ReferenceCache<Reference> {
+  private static final Logger LOG = Logger.getLogger(ReferenceCache.class.getName());
+
+  /** Identifies the cache file format */
+  private static final int MAGIC = 0x47415246;
+
+  private final ConcurrentHashMap<String, List<Reference>> referenceSets =
+      new ConcurrentHashMap<String, List<Reference>>();
+  private final File directory;
+  private final int fetchThreads;
+
+  /**
+   * @param directory where reference sets are stored, null to only cache in memory.
+   * @param fetchThreads number of concurrent requests used to fetch a reference set.
+   */
+  public ReferenceCache(File directory, int fetchThreads) {
+    this.directory = directory;
+    this.fetchThreads = Math.max(1, fetchThreads);
+  }
+
+  /**
+   * Returns the references of the reference set, from memory, from disk or
+   * fetched from the API, in that order.
+   */
+  public List<Reference> getReferences(String referenceSetId)
+      throws IOException, GeneralSecurityException {
+    List<Reference> references = referenceSets.get(referenceSetId);
+    if (references != null) {
+      return references;
+    }
+    final File file = getFile(referenceSetId);
+    if (file != null && file.exists()) {
+      try {
+        references = load(file);
+        LOG.info("Loaded " + references.size() + " references of reference set " +
+            referenceSetId + " from " + file);
+      } catch (IOException ex) {
+        LOG.warning("Ignoring unreadable reference cache file " + file + ": " + ex);
+      }
+    }
+    if (references == null) {
+      references = fetch(referenceSetId);
+      if (file != null) {
+        try {
+          store(file, references);
+        } catch (IOException ex) {
+          LOG.warning("Failed to write reference cache file " + file + ": " + ex);
+        }
+      }
+    }
+    final List<Reference> existing = referenceSets.putIfAbsent(referenceSetId, references);
+    return existing != null ? existing : references;
+  }
+
+  private List<Reference> fetch(String referenceSetId)
+      throws IOException, GeneralSecurityException {
+    LOG.info("Getting reference set " + referenceSetId);
+    final List<String> referenceIds = getReferenceIds(referenceSetId);
+    if (referenceIds == null || referenceIds.isEmpty()) {
+      return new ArrayList<Reference>();
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(fetchThreads, referenceIds.size()),
+        new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("ga4gh-reference-%d")
+          .build());
+    try {
+      final List<Future<Reference>> futures =
+          new ArrayList<Future<Reference>>(referenceIds.size());
+      for (final String referenceId : referenceIds) {
+        futures.add(executor.submit(new Callable<Reference>() {
+          @Override
+          public Reference call() throws Exception {
+            LOG.fine("Getting reference  " + referenceId);
+            return getReference(referenceId);
+          }
+        }));
+      }
+      // Keep the order of the reference set.
+      final List<Reference> references = new ArrayList<Reference>(futures.size());
+      for (Future<Reference> future : futures) {
+        references.add(future.get());
+      }
+      LOG.info("Fetched " + references.size() + " references of reference set " +
+          referenceSetId);
+      return references;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while getting reference set " +
+          referenceSetId, ex);
+    } catch (ExecutionException ex) {
+      final Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Failed to get reference set " + referenceSetId, cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private File getFile(String referenceSetId) throws IOException {
+    if (directory == null) {
+      return null;
+    }
+    return new File(new File(directory, getFormatName()),
+        URLEncoder.encode(referenceSetId, "UTF-8"));
+  }
+
+  private List<Reference> load(File file) throws IOException {
+    final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a reference cache file");
+      }
+      final int count = in.readInt();
+      final List<Reference> references = new ArrayList<Reference>(count);
+      for (int i = 0; i < count; i++) {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        references.add(deserialize(bytes));
+      }
+      return references;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes to a temporary file first so concurrent runs never see
+   * a partially written file.
+   */
+  private void store(File file, List<Reference> references) throws IOException {
+    final File parent = file.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+      throw new IOException("Can not create directory " + parent);
+    }
+    final File temp = File.createTempFile(file.getName(), ".tmp", parent);
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(references.size());
+        for (Reference reference : references) {
+          final byte[] bytes = serialize(reference);
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(file)) {
+        // Windows does not replace existing files on rename.
+        file.delete();
+        if (!temp.renameTo(file)) {
+          throw new IOException("Can not rename " + temp + " to " + file);
+        }
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /** Distinguishes serialization formats of different APIs on disk */
+  protected abstract String getFormatName();
+
+  protected abstract List<String> getReferenceIds(String referenceSetId)
+      throws IOException, GeneralSecurityException;
+  protected abstract Reference getReference(String referenceId)
+      throws IOException, GeneralSecurityException;
+
+  protected abstract byte[] serialize(Reference reference) throws IOException;
+  protected abstract Reference deserialize(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,368 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A stream of reads that survives transient failures: when the underlying 
+ * stream fails, it is reopened after a bounded exponential backoff and the
+ * reads already delivered are skipped.
+ * Streams of a single reference are reopened from the alignment start of the
+ * last delivered read; reads starting before it and reads at it that were
+ * already delivered are skipped. 
+ * Streams of the whole readset, which return each reference in coordinate 
+ * order followed by the unmapped reads, are resumed the same way on the 
+ * reference of the last delivered read, and go on with a stream per reference
+ * not delivered yet, in header order, then with the unmapped reads. 
+ * Streams of unmapped reads, whose positions are not ordered, are reopened 
+ * from the beginning and the number of reads delivered is skipped.
+ * Retries are counted from the last delivered read, after maxRetries failures
+ * in a row, or on an error that is not transient, the error is rethrown so the
+ * stream never silently ends early.
+ * The stream is opened when the iterator is made, so it starts streaming before
+ * the first read is asked for.
+ * Like the streams it wraps this can be iterated only once, it can be closed
+ * from any thread.
+ */
+public abstract class ResumableReads<Read> implements Iterable<Read>, Closeable {
+  private static final Logger LOG = Logger.getLogger(ResumableReads.class.getName());
+
+  private final String referenceName;
+  private final boolean resumableAtPosition;
+  /** References a whole readset stream is resumed along, null for other streams */
+  private final List<String> references;
+  private final int maxRetries;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private volatile Iterable<Read> current;
+  private volatile boolean closed;
+
+  /** Reads delivered so far */
+  private long delivered;
+  /** Reads without a position delivered so far */
+  private long deliveredUnplaced;
+  /** Reference of the last delivered read with a position, null if none */
+  private String lastReference;
+  /** References whose reads were all delivered, as reads of later ones were */
+  private final Set<String> finishedReferences = new HashSet<String>();
+  /** Alignment start of the last delivered read, -1 if it had none */
+  private long lastPosition = -1;
+  /** Number of reads delivered at lastPosition by their key */
+  private final Map<String, Integer> deliveredAtLastPosition = new HashMap<String, Integer>();
+
+  /** Reads of a reopened stream that are still to be skipped, see skip */
+  private long skipCount;
+  private long skipPosition = -1;
+  private Map<String, Integer> skipAtPosition;
+  /** References streamed once the resumed one ends, null if none */
+  private Deque<String> remainingReferences;
+  private int retries;
+
+  /**
+   * @param referenceName of the stream, empty for the whole readset and "*" 
+   *  for the unmapped reads.
+   * @param references of the readset in header order, along which a whole
+   *  readset stream is resumed, null to reopen it from the beginning.
+   * @param maxRetries number of times the stream is reopened without a read
+   *  delivered in between before giving up, 0 to never retry.
+   * @param initialBackoffMillis wait before the first retry, doubled for each
+   *  further retry up to maxBackoffMillis.
+   */
+  public ResumableReads(String referenceName, List<String> references, int maxRetries, 
+      long initialBackoffMillis, long maxBackoffMillis) {
+    this.referenceName = referenceName;
+    this.resumableAtPosition = !referenceName.isEmpty() && !referenceName.equals("*");
+    this.references = referenceName.isEmpty() ? references : null;
+    this.maxRetries = maxRetries;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /**
+   * Opens the stream of a reference, from the beginning if resumePosition is
+   * -1, or else with reads overlapping resumePosition and what follows it.
+   * The reference is the one of the stream, except when a whole readset 
+   * stream is resumed, which opens each of the references left, bounded by
+   * nothing but the resume position, and then "*".
+   */
+  protected abstract Iterable<Read> open(String referenceName, long resumePosition) 
+      throws IOException;
+
+  /** Returns the alignment start of a read, or -1 if it has none */
+  protected abstract long getPosition(Read read);
+
+  /** Returns the reference a read is aligned to, only called for reads with a position */
+  protected abstract String getReferenceName(Read read);
+
+  /**
+   * Returns a key telling apart reads at the same position, reads with equal
+   * keys are counted.
+   */
+  protected abstract String getKey(Read read);
+
+  /** Returns true if the stream may succeed when reopened after this error */
+  protected abstract boolean isTransient(Throwable error);
+
+  @Override
+  public Iterator<Read> iterator() {
+    return new Iterator<Read>() {
+      private Iterator<Read> reads;
+      private Read next;
+      /** Failure to open the stream, retried on the first hasNext */
+      private Exception openError;
+      
+      {
+        try {
+          reads = reopen();
+        } catch (IOException ex) {
+          openError = ex;
+        } catch (RuntimeException ex) {
+          openError = ex;
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        if (next == null) {
+          next = fetch();
+        }
+        return next != null;
+      }
+
+      @Override
+      public Read next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final Read toReturn = next;
+        next = null;
+        return toReturn;
+      }
+
+      private Read fetch() {
+        while (!closed) {
+          if (openError != null) {
+            final Exception error = openError;
+            openError = null;
+            retry(error);
+          }
+          try {
+            if (reads == null) {
+              reads = reopen();
+            }
+            while (true) {
+              while (reads.hasNext()) {
+                final Read read = reads.next();
+                if (!skip(read)) {
+                  delivered(read);
+                  return read;
+                }
+              }
+              if (remainingReferences == null || remainingReferences.isEmpty()) {
+                return null;
+              }
+              // The resumed stream goes on with the next reference, whose
+              // reads are all new.
+              skipAtPosition = null;
+              closeCurrent();
+              reads = openCurrent(remainingReferences.poll(), -1);
+            }
+          } catch (IOException ex) {
+            retry(ex);
+          } catch (RuntimeException ex) {
+            retry(ex);
+          }
+          reads = null;
+        }
+        return null;
+      }
+
+      @Override
+      public void remove() {
+        // Not implemented
+      }
+    };
+  }
+
+  /** Opens the stream for the first time or after a failure */
+  private Iterator<Read> reopen() throws IOException {
+    remainingReferences = null;
+    skipCount = 0;
+    skipAtPosition = null;
+    if (delivered == 0) {
+      return openCurrent(referenceName, -1);
+    }
+    if ((resumableAtPosition || references != null) && lastPosition >= 0) {
+      skipPosition = lastPosition;
+      skipAtPosition = new HashMap<String, Integer>(deliveredAtLastPosition);
+      if (references != null) {
+        remainingReferences = new ArrayDeque<String>();
+        for (String reference : references) {
+          if (!reference.equals(lastReference) && !finishedReferences.contains(reference)) {
+            remainingReferences.add(reference);
+          }
+        }
+        remainingReferences.add("*");
+        return openCurrent(lastReference, lastPosition);
+      }
+      return openCurrent(referenceName, lastPosition);
+    }
+    if (references != null) {
+      // Past the mapped reads of a whole readset stream.
+      skipCount = deliveredUnplaced;
+      return openCurrent("*", -1);
+    }
+    skipCount = delivered;
+    return openCurrent(referenceName, -1);
+  }
+
+  private Iterator<Read> openCurrent(String referenceName, long resumePosition) 
+      throws IOException {
+    current = open(referenceName, resumePosition);
+    if (closed) {
+      closeCurrent();
+    }
+    return current.iterator();
+  }
+
+  /** Returns true if the read of a reopened stream was already delivered */
+  private boolean skip(Read read) {
+    if (skipCount > 0) {
+      skipCount--;
+      return true;
+    }
+    if (skipAtPosition == null) {
+      return false;
+    }
+    final long position = getPosition(read);
+    if (position >= 0 && position < skipPosition) {
+      return true;
+    }
+    if (position == skipPosition) {
+      final String key = getKey(read);
+      final Integer count = skipAtPosition.get(key);
+      if (count != null) {
+        if (count > 1) {
+          skipAtPosition.put(key, count - 1);
+        } else {
+          skipAtPosition.remove(key);
+        }
+        return true;
+      }
+      return false;
+    }
+    // Past the resume position, everything from here on is new.
+    skipAtPosition = null;
+    return false;
+  }
+
+  private void delivered(Read read) {
+    delivered++;
+    retries = 0;
+    if (!resumableAtPosition && references == null) {
+      return;
+    }
+    final long position = getPosition(read);
+    if (position < 0) {
+      deliveredUnplaced++;
+      lastPosition = -1;
+      deliveredAtLastPosition.clear();
+      return;
+    }
+    final String reference = getReferenceName(read);
+    if (!reference.equals(lastReference)) {
+      if (lastReference != null) {
+        finishedReferences.add(lastReference);
+      }
+      lastReference = reference;
+      lastPosition = -1;
+    }
+    if (position != lastPosition) {
+      lastPosition = position;
+      deliveredAtLastPosition.clear();
+    }
+    final String key = getKey(read);
+    final Integer count = deliveredAtLastPosition.get(key);
+    deliveredAtLastPosition.put(key, count == null ? 1 : count + 1);
+  }
+
+  /** Waits before the stream is reopened, or rethrows the error when giving up */
+  private void retry(Exception error) {
+    closeCurrent();
+    if (closed) {
+      return;
+    }
+    if (!isTransient(error) || retries >= maxRetries) {
+      LOG.warning("Giving up streaming reads after " + retries + " retries and " +
+          delivered + " reads: " + error);
+      throw new RuntimeException("Streaming reads failed after " + retries + 
+          " retries and " + delivered + " reads", error);
+    }
+    final long backoff = Math.min(maxBackoffMillis, 
+        initialBackoffMillis << Math.min(retries, 30));
+    retries++;
+    LOG.warning("Streaming reads failed after " + delivered + " reads: " + error +
+        ", retry " + retries + " of " + maxRetries + " in " + backoff + " ms" +
+        (lastPosition >= 0 ? 
+            " from " + lastReference + ":" + lastPosition : ""));
+    try {
+      // Waits on the lock, so that closing does not wait out the backoff.
+      synchronized (this) {
+        if (!closed) {
+          wait(backoff);
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting to retry streaming reads", ex);
+    }
+  }
+
+  private void closeCurrent() {
+    final Iterable<Read> toClose = current;
+    if (toClose instanceof Closeable) {
+      try {
+        ((Closeable) toClose).close();
+      } catch (IOException ex) {
+        LOG.warning("Failed to close reads stream: " + ex);
+      }
+    }
+  }
+
+  /**
+   * Closes the current stream, cancelling its requests, and ends the iteration.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    closeCurrent();
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference index and read group lookups of one header, built once and
+ * shared by all records converted against it. Immutable, so it can be used
+ * by concurrent conversions.
+ */
+public class SAMHeaderLookup {
+  private final SAMFileHeader header;
+  private final Map<String, Integer> referenceIndexes = new HashMap<String, Integer>();
+  private final Map<String, String> readGroupIds = new HashMap<String, String>();
+
+  public SAMHeaderLookup(SAMFileHeader header) {
+    this.header = header;
+    for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+      referenceIndexes.put(sequence.getSequenceName(), sequence.getSequenceIndex());
+    }
+    for (SAMReadGroupRecord readGroup : header.getReadGroups()) {
+      readGroupIds.put(readGroup.getId(), readGroup.getId());
+    }
+  }
+
+  /**
+   * Returns the lookup for the header, reusing the cached one if it was
+   * built for the same header.
+   */
+  public static SAMHeaderLookup forHeader(SAMHeaderLookup cached, SAMFileHeader header) {
+    if (cached != null && cached.header == header) {
+      return cached;
+    }
+    return new SAMHeaderLookup(header);
+  }
+
+  /** Returns the index of the reference in the header, or -1 if it is not there */
+  public int getReferenceIndex(String referenceName) {
+    final Integer index = referenceIndexes.get(referenceName);
+    return index != null ? index : -1;
+  }
+
+  /**
+   * Returns the id of the header's read group, so all records share one
+   * string instance, or the passed id if the header does not have it.
+   */
+  public String getReadGroupId(String readGroupId) {
+    final String id = readGroupIds.get(readGroupId);
+    return id != null ? id : readGroupId;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMUtils;
+import htsjdk.samtools.TagValueAndUnsignedArrayFlag;
+import htsjdk.samtools.TextTagCodec;
+import htsjdk.samtools.ValidationStringency;
+
+/**
+ * Field setters shared by the direct Read to SAMRecord converters.
+ * Each produces the same record state as the corresponding string based
+ * setter of SAMRecord used by ReadUtils, without the intermediate strings.
+ */
+public final class SAMRecordConversion {
+  private SAMRecordConversion() {
+  }
+
+  /** Same as SAMRecord.setReferenceName, with the index looked up once per header */
+  public static void setReferenceName(SAMRecord record, SAMHeaderLookup lookup,
+      String referenceName) {
+    final int index = lookup.getReferenceIndex(referenceName);
+    if (index != -1) {
+      record.setReferenceIndex(index);
+    } else {
+      record.setReferenceName(referenceName);
+    }
+  }
+
+  /** Same as SAMRecord.setMateReferenceName, with the index looked up once per header */
+  public static void setMateReferenceName(SAMRecord record, SAMHeaderLookup lookup,
+      String mateReferenceName) {
+    final int index = lookup.getReferenceIndex(mateReferenceName);
+    if (index != -1) {
+      record.setMateReferenceIndex(index);
+    } else {
+      record.setMateReferenceName(mateReferenceName);
+    }
+  }
+
+  /**
+   * Same as SAMRecord.setReadString.
+   */
+  public static void setReadString(SAMRecord record, String sequence) {
+    record.setReadBases(toReadBases(sequence));
+  }
+
+  /**
+   * Returns the bases SAMRecord.setReadString would set, converted and
+   * normalized (upper case, '.' to 'N') in a single pass.
+   */
+  public static byte[] toReadBases(String sequence) {
+    if (SAMRecord.NULL_SEQUENCE_STRING.equals(sequence)) {
+      return SAMRecord.NULL_SEQUENCE;
+    }
+    final int length = sequence.length();
+    final byte[] bases = new byte[length];
+    for (int i = 0; i < length; i++) {
+      byte base = (byte) sequence.charAt(i);
+      if (base >= 'a' && base <= 'z') {
+        base -= 'a' - 'A';
+      } else if (base == '.') {
+        base = 'N';
+      }
+      bases[i] = base;
+    }
+    return bases;
+  }
+
+  /** Returns the read length SAMRecord.setReadString would result in */
+  public static int getReadLength(String sequence) {
+    return SAMRecord.NULL_SEQUENCE_STRING.equals(sequence) ? 0 : sequence.length();
+  }
+
+  /**
+   * Sets an attribute from its SAM text value, decoding the common Z and i
+   * types directly. Other types go through a TextTagCodec, which is not
+   * thread safe, so a new one is used for each of these rare values.
+   */
+  public static void setAttribute(SAMRecord record, String tag, String type, 
+      String value) {
+    if ("Z".equals(type)) {
+      record.setAttribute(tag, value);
+      return;
+    }
+    if ("i".equals(type)) {
+      try {
+        record.setAttribute(tag, Integer.valueOf(value));
+      } catch (NumberFormatException ex) {
+        throw new SAMFormatException("Tag of type i should have signed decimal value");
+      }
+      return;
+    }
+    final Object attrValue = new TextTagCodec()
+        .decode(tag + ":" + type + ":" + value).getValue();
+    if (attrValue instanceof TagValueAndUnsignedArrayFlag) {
+      record.setUnsignedArrayAttribute(tag, 
+          ((TagValueAndUnsignedArrayFlag) attrValue).value);
+    } else {
+      record.setAttribute(tag, attrValue);
+    }
+  }
+
+  /**
+   * Runs the validation SAMRecord.getCigar does when decoding a CIGAR string,
+   * which is skipped when the Cigar is set directly.
+   * Call once all the fields of the record are set.
+   */
+  public static void validateCigar(SAMRecord record) {
+    if (record.getCigar() != null && 
+        record.getValidationStringency() != ValidationStringency.SILENT && 
+        !record.getReadUnmappedFlag()) {
+      SAMUtils.processValidationErrors(record.validateCigar(-1L), -1L, 
+          record.getValidationStringency());
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+
+/**
+ * Local files holding the unmapped mates collected for a readset, so that
+ * later runs on the same data can skip the scan of unmapped reads.
+ * A sidecar is keyed by readset id and data version and consists of the saved
+ * OffHeapMateStore, memory-mapped when opened, and its Bloom filter.
+ * The filter is written first, so a present store file means a complete sidecar.
+ */
+public class UnmappedMatesSidecar {
+  private static final String MATES_SUFFIX = ".mates";
+  private static final String FILTER_SUFFIX = ".bloom";
+
+  /**
+   * Returns the base name of the sidecar files of a readset in the directory.
+   */
+  public static File getFile(File directory, String readsetId, String dataVersion)
+      throws IOException {
+    return new File(directory, URLEncoder.encode(readsetId, "UTF-8") + "-" + dataVersion);
+  }
+
+  public static boolean exists(File sidecar) {
+    return matesFile(sidecar).exists() && filterFile(sidecar).exists();
+  }
+
+  public static void save(File sidecar, OffHeapMateStore store, MateBloomFilter filter)
+      throws IOException {
+    final File directory = sidecar.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Can not create directory " + directory);
+    }
+    final File filterFile = filterFile(sidecar);
+    final File temp = File.createTempFile(filterFile.getName(), ".tmp", directory);
+    try {
+      final DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(temp), 1 << 20));
+      try {
+        filter.writeTo(out);
+      } finally {
+        out.close();
+      }
+      filterFile.delete();
+      if (!temp.renameTo(filterFile)) {
+        throw new IOException("Can not rename " + temp + " to " + filterFile);
+      }
+    } finally {
+      temp.delete();
+    }
+    store.save(matesFile(sidecar));
+  }
+
+  public static OffHeapMateStore openStore(File sidecar) throws IOException {
+    return OffHeapMateStore.open(matesFile(sidecar));
+  }
+
+  public static MateBloomFilter openFilter(File sidecar) throws IOException {
+    final DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(filterFile(sidecar)), 1 << 20));
+    try {
+      return MateBloomFilter.readFrom(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static File matesFile(File sidecar) {
+    return new File(sidecar.getPath() + MATES_SUFFIX);
+  }
+
+  private static File filterFile(File sidecar) {
+    return new File(sidecar.getPath() + FILTER_SUFFIX);
+  }
+}
@@ -38,4 +38,30 @@ public interface UnmappedReads<Read> {
   public ArrayList<Read> getUnmappedMates(Read read);
   
   public long getReadCount();
+  
+  /**
+   * Returns false if some mates could not be kept, e.g. because storing them
+   * failed, in which case the collected mates must not be saved for reuse.
+   */
+  public boolean isComplete();
+  
+  /** Logs the number of collected mates and lookup statistics */
+  public void logStats();
+  
+  /**
+   * Returns the reference an unmapped mate is kept under, that of its mapped
+   * mate, or null if there is none.
+   */
+  public String getMateReferenceName(Read read);
+  
+  /**
+   * Returns the reference a read is aligned to or null if it is not aligned.
+   */
+  public String getReferenceName(Read read);
+  
+  /**
+   * Drops the collected mates, releasing memory and files that hold them.
+   * No mates are found afterwards.
+   */
+  public void close();
 }
@@ -20,11 +20,132 @@ public abstract class UnmappedReadsBase<Read> implements UnmappedReads<Read> {
    */
   protected static final long MAX_READS = 100000000;
   
+  /** Number of mates the Bloom filter is sized for by default */
+  public static final long DEFAULT_EXPECTED_MATES = 4000000;
+  
+  /** False positive rate the Bloom filter is sized for */
+  private static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+  
+  /** Filters out lookups for reads that have no collected mates */
+  protected final MateBloomFilter filter;
+  private long filterChecks;
+  private long filterPasses;
+  private long filterFalsePositives;
+  private volatile boolean matesDropped;
+  
+  public UnmappedReadsBase() {
+    this(DEFAULT_EXPECTED_MATES);
+  }
+  
+  /**
+   * @param expectedMates number of mates the Bloom filter is sized for, more
+   *  mates are accepted at the cost of a higher false positive rate.
+   */
+  public UnmappedReadsBase(long expectedMates) {
+    filter = new MateBloomFilter(expectedMates, FILTER_FALSE_POSITIVE_RATE);
+  }
+  
+  /**
+   * Makes an instance over already collected mates.
+   */
+  protected UnmappedReadsBase(MateBloomFilter filter, long readCount) {
+    this.filter = filter;
+    this.readCount = readCount;
+  }
+  
   @Override
   public long getReadCount() {
     return readCount;
   }
   
+  @Override
+  public boolean isComplete() {
+    return !matesDropped;
+  }
+  
+  /**
+   * Adds the mate to the store and the Bloom filter, counting it.
+   */
+  protected boolean rememberMate(String reference, String fragmentName, Read read) {
+    if (!addMate(reference, fragmentName, read)) {
+      matesDropped = true;
+      return false;
+    }
+    filter.add(reference, fragmentName);
+    readCount++;
+    return true;
+  }
+  
+  /**
+   * Looks up the mates, consulting the Bloom filter first.
+   */
+  protected ArrayList<Read> findMates(String reference, String fragmentName) {
+    filterChecks++;
+    if (!filter.mightContain(reference, fragmentName)) {
+      return null;
+    }
+    filterPasses++;
+    final ArrayList<Read> mates = getMates(reference, fragmentName);
+    if (mates == null) {
+      filterFalsePositives++;
+    }
+    return mates;
+  }
+  
+  @Override
+  public void logStats() {
+    final long misses = filterChecks - (filterPasses - filterFalsePositives);
+    LOG.info("Unmapped mates: " + readCount + " collected, Bloom filter of " + 
+        filter.getBitCount() / 8 + " bytes with " + filter.getHashCount() + 
+        " hashes, expected false positive rate " + 
+        String.format("%.5f", filter.getExpectedFalsePositiveRate()) + 
+        ", observed " + filterFalsePositives + " in " + misses + " misses" +
+        (misses > 0 ? 
+            String.format(" (%.5f)", (double) filterFalsePositives / misses) : ""));
+  }
+  
+  /**
+   * Remembers an unmapped mate under the reference and fragment name of its
+   * mapped mate. Returns true if the mate was kept.
+   * Keeps mates as heap objects, override to store them differently.
+   */
+  protected boolean addMate(String reference, String fragmentName, Read read) {
+    Map<String, ArrayList<Read>> reads = unmappedReads.get(reference);
+    if (reads == null) {
+      reads = new HashMap<String, ArrayList<Read>>();
+      unmappedReads.put(reference, reads);
+    }
+    ArrayList<Read> mates = reads.get(fragmentName);
+    if (mates == null) {
+      mates = new ArrayList<Read>();
+      reads.put(fragmentName, mates);
+    }
+    if (getReadCount() < MAX_READS) {
+      mates.add(read);
+      return true;
+    } else {
+      LOG.warning("Reached the limit of in-memory unmapped mates for injection.");
+    }
+    return false;
+  }
+  
+  /**
+   * Returns the unmapped mates kept for the reference and fragment name
+   * or null if there are none.
+   */
+  protected ArrayList<Read> getMates(String reference, String fragmentName) {
+    Map<String, ArrayList<Read>> reads = unmappedReads.get(reference);
+    if (reads != null) {
+      return reads.get(fragmentName);
+    }
+    return null;
+  }
+  
+  @Override
+  public void close() {
+    unmappedReads.clear();
+  }
+  
   protected Map<String, Map<String, ArrayList<Read>>> unmappedReads = 
       new HashMap<String, Map<String, ArrayList<Read>>>();
   
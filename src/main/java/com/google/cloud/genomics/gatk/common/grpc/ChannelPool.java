@@ -0,0 +1,197 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common.grpc;
+
+import io.grpc.Call;
+import io.grpc.Channel;
+import io.grpc.ChannelImpl;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.ForwardingCall;
+import io.grpc.ForwardingCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Spreads calls over several channels, each with its own connection and
+ * flow control window, so that many concurrent streams are not capped by
+ * the throughput of a single connection.
+ * A call is placed either on the next channel in turn or on the channel
+ * with the fewest active calls. Calls started and active on each channel are
+ * counted to report how evenly the pool is used.
+ */
+public class ChannelPool extends Channel {
+  private static final Logger LOG = Logger.getLogger(ChannelPool.class.getName());
+
+  private final List<ChannelImpl> channels;
+  private final Channel[] intercepted;
+  private final boolean leastLoaded;
+  private final AtomicInteger nextChannel = new AtomicInteger();
+  private final AtomicInteger[] activeCalls;
+  private final AtomicInteger[] peakActiveCalls;
+  private final AtomicLong[] startedCalls;
+
+  /**
+   * @param channels the pooled channels, shut down with the pool.
+   * @param interceptor applied to calls of every channel.
+   * @param leastLoaded place calls on the channel with the fewest active
+   *  calls rather than round-robin.
+   */
+  public ChannelPool(List<ChannelImpl> channels, ClientInterceptor interceptor,
+      boolean leastLoaded) {
+    if (channels.isEmpty()) {
+      throw new IllegalArgumentException("Channel pool has to have channels");
+    }
+    this.channels = channels;
+    this.leastLoaded = leastLoaded;
+    intercepted = new Channel[channels.size()];
+    activeCalls = new AtomicInteger[channels.size()];
+    peakActiveCalls = new AtomicInteger[channels.size()];
+    startedCalls = new AtomicLong[channels.size()];
+    for (int i = 0; i < intercepted.length; i++) {
+      intercepted[i] = ClientInterceptors.intercept(channels.get(i), interceptor);
+      activeCalls[i] = new AtomicInteger();
+      peakActiveCalls[i] = new AtomicInteger();
+      startedCalls[i] = new AtomicLong();
+    }
+  }
+
+  @Override
+  public <ReqT, RespT> Call<ReqT, RespT> newCall(MethodDescriptor<ReqT, RespT> method) {
+    final int index = selectChannel();
+    return new CountingCall<ReqT, RespT>(intercepted[index].newCall(method), index);
+  }
+
+  private int selectChannel() {
+    final int first = (nextChannel.getAndIncrement() & Integer.MAX_VALUE) % 
+        intercepted.length;
+    if (!leastLoaded) {
+      return first;
+    }
+    // Scanning from the round-robin position spreads ties evenly.
+    int selected = first;
+    for (int i = 1; i < intercepted.length; i++) {
+      final int index = (first + i) % intercepted.length;
+      if (activeCalls[index].get() < activeCalls[selected].get()) {
+        selected = index;
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Counts a call as active on its channel from start until close.
+   */
+  private class CountingCall<ReqT, RespT> 
+      extends ForwardingCall.SimpleForwardingCall<ReqT, RespT> {
+    private final int index;
+    private final AtomicBoolean active = new AtomicBoolean();
+
+    CountingCall(Call<ReqT, RespT> delegate, int index) {
+      super(delegate);
+      this.index = index;
+    }
+
+    @Override
+    public void start(Listener<RespT> listener, Metadata.Headers headers) {
+      active.set(true);
+      startedCalls[index].incrementAndGet();
+      final int active = activeCalls[index].incrementAndGet();
+      int peak;
+      do {
+        peak = peakActiveCalls[index].get();
+      } while (active > peak && !peakActiveCalls[index].compareAndSet(peak, active));
+      try {
+        delegate().start(
+            new ForwardingCallListener.SimpleForwardingCallListener<RespT>(listener) {
+              @Override
+              public void onClose(Status status, Metadata.Trailers trailers) {
+                finished();
+                super.onClose(status, trailers);
+              }
+            }, headers);
+      } catch (RuntimeException ex) {
+        finished();
+        throw ex;
+      }
+    }
+
+    private void finished() {
+      if (active.compareAndSet(true, false)) {
+        activeCalls[index].decrementAndGet();
+      }
+    }
+  }
+
+  public int getChannelCount() {
+    return intercepted.length;
+  }
+
+  /** Number of calls currently active on a channel */
+  public int getActiveCalls(int channel) {
+    return activeCalls[channel].get();
+  }
+
+  /** Largest number of calls that were active on a channel at the same time */
+  public int getPeakActiveCalls(int channel) {
+    return peakActiveCalls[channel].get();
+  }
+
+  /** Number of calls started on a channel so far */
+  public long getStartedCalls(int channel) {
+    return startedCalls[channel].get();
+  }
+
+  /**
+   * Returns calls started, active and at peak on each channel, e.g.
+   * "channel 0: 12 calls, 2 active, peak 4; channel 1: ...".
+   */
+  public String getUtilization() {
+    final StringBuilder utilization = new StringBuilder();
+    for (int i = 0; i < intercepted.length; i++) {
+      if (i > 0) {
+        utilization.append("; ");
+      }
+      utilization.append("channel ").append(i).append(": ")
+        .append(getStartedCalls(i)).append(" calls, ")
+        .append(getActiveCalls(i)).append(" active, peak ")
+        .append(getPeakActiveCalls(i));
+    }
+    return utilization.toString();
+  }
+
+  public void logUtilization() {
+    LOG.info("Channel pool of " + intercepted.length + 
+        (leastLoaded ? " least loaded" : " round-robin") + " channels: " + 
+        getUtilization());
+  }
+
+  /**
+   * Shuts down all channels, calls in flight are allowed to finish.
+   */
+  public void shutdown() {
+    for (ChannelImpl channel : channels) {
+      channel.shutdown();
+    }
+  }
+}
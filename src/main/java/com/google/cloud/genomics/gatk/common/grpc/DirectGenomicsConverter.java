@@ -0,0 +1,242 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common.grpc;
+
+import com.google.cloud.genomics.gatk.common.ReadProjection;
+import com.google.cloud.genomics.gatk.common.SAMHeaderLookup;
+import com.google.cloud.genomics.gatk.common.SAMRecordConversion;
+import com.google.cloud.genomics.utils.grpc.ReadUtils;
+import com.google.genomics.v1.CigarUnit;
+import com.google.genomics.v1.LinearAlignment;
+import com.google.genomics.v1.Position;
+import com.google.genomics.v1.Read;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Value;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.TextCigarCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts reads straight into SAMRecord fields: bases and qualities into
+ * byte arrays, CIGAR units into a Cigar, and reference and read group names
+ * through lookups cached per header.
+ * Produces the same records as ReadUtils.makeSAMRecord, optionally as
+ * LazySAMRecords that decode bases, qualities, CIGAR and attributes only
+ * when they are first accessed, and without the fields a projection omits.
+ * Thread safe, so one instance can be shared by concurrent conversions.
+ */
+public class DirectGenomicsConverter extends GenomicsConverter {
+  private final boolean lazy;
+  private final ReadProjection projection;
+  private volatile SAMHeaderLookup lookup;
+
+  public DirectGenomicsConverter() {
+    this(false);
+  }
+
+  /**
+   * @param lazy true to return LazySAMRecords.
+   */
+  public DirectGenomicsConverter(boolean lazy) {
+    this(lazy, ReadProjection.ALL);
+  }
+
+  /**
+   * @param lazy true to return LazySAMRecords.
+   * @param projection fields to convert.
+   */
+  public DirectGenomicsConverter(boolean lazy, ReadProjection projection) {
+    this.lazy = lazy;
+    this.projection = projection;
+  }
+
+  @Override
+  public DirectGenomicsConverter withProjection(ReadProjection projection) {
+    if (projection == this.projection) {
+      return this;
+    }
+    final DirectGenomicsConverter converter = new DirectGenomicsConverter(lazy, projection);
+    converter.lookup = lookup;
+    return converter;
+  }
+
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
+
+  @Override
+  public SAMRecord makeSAMRecord(Read read, SAMFileHeader header) {
+    final SAMHeaderLookup lookup = SAMHeaderLookup.forHeader(this.lookup, header);
+    this.lookup = lookup;
+    
+    final SAMRecord record = lazy ? 
+        new LazySAMRecord(header, read, lookup, projection) : new SAMRecord(header);
+    record.setReadName(read.getFragmentName());
+    record.setFlags(ReadUtils.getFlags(read));
+    
+    if (read.hasAlignment()) {
+      final LinearAlignment alignment = read.getAlignment();
+      if (alignment.hasPosition()) {
+        final Position position = alignment.getPosition();
+        if (!position.getReferenceName().isEmpty()) {
+          SAMRecordConversion.setReferenceName(record, lookup, position.getReferenceName());
+        }
+        record.setAlignmentStart((int) position.getPosition() + 1);
+      }
+      record.setMappingQuality(alignment.getMappingQuality());
+    }
+    
+    if (read.hasNextMatePosition()) {
+      final Position matePosition = read.getNextMatePosition();
+      if (!matePosition.getReferenceName().isEmpty()) {
+        SAMRecordConversion.setMateReferenceName(record, lookup, 
+            matePosition.getReferenceName());
+      }
+      record.setMateAlignmentStart((int) matePosition.getPosition() + 1);
+    }
+    record.setInferredInsertSize(read.getFragmentLength());
+    
+    if (!lazy) {
+      if (projection.includesSequence()) {
+        SAMRecordConversion.setReadString(record, read.getAlignedSequence());
+      }
+      final byte[] qualities = projection.includesQualities() ? 
+          getBaseQualities(read) : null;
+      if (qualities != null) {
+        record.setBaseQualities(qualities);
+      }
+      setAttributes(record, lookup, read, projection.includesTags());
+      if (read.hasAlignment() && read.getAlignment().getCigarCount() > 0) {
+        final Cigar cigar = makeCigar(read.getAlignment());
+        if (cigar != null) {
+          record.setCigar(cigar);
+          SAMRecordConversion.validateCigar(record);
+        } else {
+          record.setCigarString(ReadUtils.getCigarString(read));
+        }
+      }
+    }
+    return record;
+  }
+  
+  /** Returns the read group attribute of the read, or null if it has none */
+  static String getReadGroupId(SAMHeaderLookup lookup, Read read) {
+    if (read.getReadGroupId().isEmpty()) {
+      return null;
+    }
+    return lookup.getReadGroupId(read.getReadGroupId());
+  }
+  
+  /** Sets the read group and, if included, the info tags of the read */
+  static void setAttributes(SAMRecord record, SAMHeaderLookup lookup, Read read,
+      boolean includeTags) {
+    final String readGroupId = getReadGroupId(lookup, read);
+    if (readGroupId != null) {
+      record.setAttribute("RG", readGroupId);
+    }
+    if (!includeTags) {
+      return;
+    }
+    for (Map.Entry<String, ListValue> tag : read.getInfo().entrySet()) {
+      if (tag.getValue() == null) {
+        continue;
+      }
+      final String type = ReadUtils.getTagType(tag.getKey());
+      for (Value value : tag.getValue().getValuesList()) {
+        SAMRecordConversion.setAttribute(record, tag.getKey(), type, 
+            value.getStringValue());
+      }
+    }
+  }
+  
+  /** Returns the qualities of the read, or null if it has none */
+  static byte[] getBaseQualities(Read read) {
+    final int qualityCount = read.getAlignedQualityCount();
+    if (qualityCount == 0) {
+      return null;
+    }
+    final byte[] qualities = new byte[qualityCount];
+    for (int i = 0; i < qualityCount; i++) {
+      qualities[i] = (byte) read.getAlignedQuality(i);
+    }
+    return qualities;
+  }
+  
+  /**
+   * Returns the CIGAR of the read, or null if it has none. Units that can not 
+   * be converted go through the CIGAR string, and fail as they did before.
+   */
+  static Cigar decodeCigar(Read read) {
+    if (!read.hasAlignment() || read.getAlignment().getCigarCount() == 0) {
+      return null;
+    }
+    final Cigar cigar = makeCigar(read.getAlignment());
+    return cigar != null ? cigar : TextCigarCodec.decode(ReadUtils.getCigarString(read));
+  }
+  
+  /**
+   * Returns null if a unit can not be converted, the caller then falls back
+   * to the CIGAR string so the failure surfaces as it did before.
+   */
+  private static Cigar makeCigar(LinearAlignment alignment) {
+    final int count = alignment.getCigarCount();
+    final List<CigarElement> elements = new ArrayList<CigarElement>(count);
+    for (int i = 0; i < count; i++) {
+      final CigarUnit unit = alignment.getCigar(i);
+      final CigarOperator operator = getOperator(unit.getOperation());
+      final long length = unit.getOperationLength();
+      if (operator == null || length < 0 || length > Integer.MAX_VALUE) {
+        return null;
+      }
+      elements.add(new CigarElement((int) length, operator));
+    }
+    return new Cigar(elements);
+  }
+  
+  private static CigarOperator getOperator(CigarUnit.Operation operation) {
+    switch (operation) {
+      case ALIGNMENT_MATCH:
+        return CigarOperator.M;
+      case INSERT:
+        return CigarOperator.I;
+      case DELETE:
+        return CigarOperator.D;
+      case SKIP:
+        return CigarOperator.N;
+      case CLIP_SOFT:
+        return CigarOperator.S;
+      case CLIP_HARD:
+        return CigarOperator.H;
+      case PAD:
+        return CigarOperator.P;
+      case SEQUENCE_MATCH:
+        return CigarOperator.EQ;
+      case SEQUENCE_MISMATCH:
+        return CigarOperator.X;
+      default:
+        return null;
+    }
+  }
+}
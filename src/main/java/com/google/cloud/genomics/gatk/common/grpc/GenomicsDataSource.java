@@ -19,13 +19,22 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.util.Utils;
 import com.google.auth.oauth2.UserCredentials;
 import com.google.cloud.genomics.gatk.common.GenomicsDataSourceBase;
+import com.google.cloud.genomics.gatk.common.GenomicsDataSourceFactory.Settings;
+import com.google.cloud.genomics.gatk.common.ReadCoverage;
+import com.google.cloud.genomics.gatk.common.ReadGroupSetSession;
+import com.google.cloud.genomics.gatk.common.ReadProjection;
+import com.google.cloud.genomics.gatk.common.ReferenceCache;
 import com.google.cloud.genomics.utils.GenomicsFactory.OfflineAuth;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.genomics.v1.CoverageBucket;
 import com.google.genomics.v1.GetReadGroupSetRequest;
 import com.google.genomics.v1.GetReferenceRequest;
 import com.google.genomics.v1.GetReferenceSetRequest;
+import com.google.genomics.v1.ListCoverageBucketsRequest;
+import com.google.genomics.v1.ListCoverageBucketsResponse;
 import com.google.genomics.v1.Read;
 import com.google.genomics.v1.ReadGroup;
 import com.google.genomics.v1.ReadGroupSet;
@@ -33,23 +42,21 @@ import com.google.genomics.v1.ReadServiceV1Grpc;
 import com.google.genomics.v1.ReadServiceV1Grpc.ReadServiceV1BlockingStub;
 import com.google.genomics.v1.Reference;
 import com.google.genomics.v1.ReferenceServiceV1Grpc;
-import com.google.genomics.v1.ReferenceServiceV1Grpc.ReferenceServiceV1BlockingStub;
 import com.google.genomics.v1.ReferenceSet;
 import com.google.genomics.v1.StreamReadsRequest;
 import com.google.genomics.v1.StreamReadsResponse;
-import com.google.genomics.v1.StreamingReadServiceGrpc;
-import com.google.genomics.v1.StreamingReadServiceGrpc.StreamingReadServiceBlockingStub;
 
 import io.grpc.Channel;
 import io.grpc.ChannelImpl;
-import io.grpc.ClientInterceptors;
 import io.grpc.auth.ClientAuthInterceptor;
 import io.grpc.transport.netty.GrpcSslContexts;
 import io.grpc.transport.netty.NegotiationType;
 import io.grpc.transport.netty.NettyChannelBuilder;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
@@ -57,6 +64,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
@@ -67,7 +75,16 @@ public class GenomicsDataSource
   extends GenomicsDataSourceBase<Read, ReadGroupSet, Reference> {
   /** gRPC channel used for faster access to Genomics API */
   private Channel channel;
-  private ChannelImpl channelImpl;
+  /** The connections calls of channel are spread over */
+  private ChannelPool channelPool;
+  /**
+   * Runs the channel's callbacks, streams are non-blocking so a few threads
+   * serve any number of concurrent streams.
+   */
+  private ExecutorService channelExecutor;
+  private ExecutorService authExecutor;
+  private ReferenceCache<Reference> referenceCache;
+  private static final int CHANNEL_THREADS = 4;
  
   public GenomicsDataSource(String rootUrl, 
       String clientSecretsFilename, 
@@ -75,8 +92,12 @@ public class GenomicsDataSource
       boolean noLocalServer) {
     super(rootUrl, clientSecretsFilename, apiKey, noLocalServer);
   }
+  
+  public GenomicsDataSource(String rootUrl, Settings settings) {
+    super(rootUrl, settings);
+  }
     
-  private Channel getChannel() throws FileNotFoundException, IOException, GeneralSecurityException {
+  private synchronized Channel getChannel() throws FileNotFoundException, IOException, GeneralSecurityException {
     if (channel == null ) {
       channel = initGenomicsChannel();
     }
@@ -106,29 +127,54 @@ public class GenomicsDataSource
       }
     }
     
-    channelImpl = NettyChannelBuilder.forAddress("genomics.googleapis.com", 443)
-        .negotiationType(NegotiationType.TLS)
-        .streamWindowSize(1000000)
-        .sslContext(GrpcSslContexts.forClient().ciphers(performantCiphers).build())
-        .build();
+    channelExecutor = Executors.newFixedThreadPool(CHANNEL_THREADS,
+        new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("ga4gh-grpc-%d")
+          .build());
+    // Each channel has its own connection, so streams on different channels
+    // do not share a connection flow control window.
+    final List<ChannelImpl> channels = new ArrayList<ChannelImpl>();
+    for (int i = 0; i < Math.max(1, settings.grpcChannels); i++) {
+      final NettyChannelBuilder builder = 
+          NettyChannelBuilder.forAddress("genomics.googleapis.com", 443)
+            .executor(channelExecutor)
+            .negotiationType(NegotiationType.TLS)
+            .sslContext(GrpcSslContexts.forClient().ciphers(performantCiphers).build());
+      if (settings.streamWindowBytes > 0) {
+        builder.streamWindowSize(settings.streamWindowBytes);
+      }
+      if (settings.connectionWindowBytes > 0) {
+        builder.connectionWindowSize(settings.connectionWindowBytes);
+      }
+      channels.add(builder.build());
+    }
     /*userCredentials = userCredentials.createScoped(
         Arrays.asList("https://www.googleapis.com/auth/genomics"));*/
+    authExecutor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).build());
     ClientAuthInterceptor interceptor = new ClientAuthInterceptor(userCredentials,
-        Executors.newSingleThreadExecutor());
-    return ClientInterceptors.intercept(channelImpl, interceptor); 
+        authExecutor);
+    channelPool = new ChannelPool(channels, interceptor, 
+        settings.leastLoadedChannels);
+    LOG.info("Opened " + channels.size() + " GRPC channels");
+    return channelPool; 
+  }
+  
+  /**
+   * Returns the pool of channels, for its utilization, or null if no 
+   * channel has been opened yet.
+   */
+  public synchronized ChannelPool getChannelPool() {
+    return channelPool;
   }
 
  
   @Override
-  public ReadIteratorResource getReads(
-      String readsetId, 
-      String sequenceName, int sequenceStart, int sequenceEnd) 
-          throws IOException, GeneralSecurityException {
-    LOG.info("Getting readset from GRPC:" + readsetId + ", sequence " + sequenceName + 
-        ", start=" + sequenceStart + ", end=" + sequenceEnd);
-    final Channel channel = getChannel();
-    
-    ReadServiceV1BlockingStub readStub = ReadServiceV1Grpc.newBlockingStub(channel);
+  public ReadGroupSetSession<Read, ReadGroupSet, Reference> openSession(String readsetId) 
+      throws IOException, GeneralSecurityException {
+    LOG.info("Getting readset from GRPC:" + readsetId);
+    ReadServiceV1BlockingStub readStub = ReadServiceV1Grpc.newBlockingStub(getChannel());
     GetReadGroupSetRequest getReadGroupSetRequest = GetReadGroupSetRequest
         .newBuilder()
         .setReadGroupSetId(readsetId)
@@ -138,10 +184,22 @@ public class GenomicsDataSource
     String datasetId = readGroupSet.getDatasetId();
     LOG.info("Found readset " + readsetId + ", dataset " + datasetId);
     
-    final Map<String, Reference> references = 
-        getReferences(readGroupSet);
+    return new ReadGroupSetSession<Read, ReadGroupSet, Reference>(readsetId, 
+        readGroupSet, getReferences(readGroupSet), 
+        new DirectGenomicsConverter(settings.lazySAMRecords));
+  }
+ 
+  @Override
+  public ReadIteratorResource getReads(
+      ReadGroupSetSession<Read, ReadGroupSet, Reference> session, 
+      String sequenceName, int sequenceStart, int sequenceEnd, 
+      ReadProjection projection) throws IOException, GeneralSecurityException {
+    final String readsetId = session.getReadsetId();
+    LOG.info("Getting reads from GRPC:" + readsetId + ", sequence " + sequenceName + 
+        ", start=" + sequenceStart + ", end=" + sequenceEnd);
+    final Channel channel = getChannel();
     
-    final Reference reference = references.get(sequenceName);
+    final Reference reference = session.getReference(sequenceName);
     if (reference != null) {
         LOG.info("Reference for sequence name " + sequenceName + " is found, length="
             + String.valueOf(reference.getLength()));
@@ -153,27 +211,68 @@ public class GenomicsDataSource
     
     com.google.cloud.genomics.gatk.common.UnmappedReads<Read> unmappedReads = null;
     if (sequenceName.isEmpty()) {
-      unmappedReads = getUnmappedMatesOfMappedReads(readsetId);
+      unmappedReads = getUnmappedMatesOfMappedReads(session);
     }
     
-    StreamingReadServiceBlockingStub streamingReadStub = 
-        StreamingReadServiceGrpc.newBlockingStub(getChannel());
-    StreamReadsRequest.Builder streamReadsRequestBuilder = StreamReadsRequest.newBuilder()
-        .setReadGroupSetId(readsetId)
-        .setReferenceName(sequenceName);
-    if (sequenceStart != 0) {
-      streamReadsRequestBuilder.setStart(Long.valueOf(sequenceStart));
-    }
-    if (sequenceEnd != 0) {
-      streamReadsRequestBuilder.setEnd(Long.valueOf(sequenceEnd));
-    }
-    final StreamReadsRequest streamReadRequest = streamReadsRequestBuilder.build();
-    final Iterable<Read> reads = streamReadsResponseToReadsIterator(
-        streamingReadStub.streamReads(streamReadRequest), sequenceEnd);
-    return new ReadIteratorResource(readGroupSet, 
-        Lists.newArrayList(references.values()), unmappedReads, reads);
+    final List<ShardedStreamReads.Shard> shards = 
+        makeShards(session.getReferences(), reference, sequenceName, sequenceStart, sequenceEnd);
+    final Iterable<Read> reads;
+    if (shards != null) {
+      reads = new ShardedStreamReads(channel, readsetId, shards, 
+          settings.streamShards, settings);
+    } else {
+      StreamReadsRequest.Builder streamReadsRequestBuilder = StreamReadsRequest.newBuilder()
+          .setReadGroupSetId(readsetId)
+          .setReferenceName(sequenceName);
+      if (sequenceStart != 0) {
+        streamReadsRequestBuilder.setStart(Long.valueOf(sequenceStart));
+      }
+      if (sequenceEnd != 0) {
+        streamReadsRequestBuilder.setEnd(Long.valueOf(sequenceEnd));
+      }
+      final StreamReadsRequest streamReadRequest = streamReadsRequestBuilder.build();
+      reads = new ResumableStreamReads(channel, streamReadRequest, sequenceEnd,
+          StreamReadsIterator.DEFAULT_BUFFER_RESPONSES, getReferenceNames(session), 
+          settings);
+    }
+    return configureResource(new ReadIteratorResource(session, 
+        unmappedReads, reads, projection));
 
   }
+  
+  /**
+   * Splits the requested range into shards to be streamed concurrently, or, for the
+   * whole readset, splits each reference in the order they appear in the header and
+   * adds the unmapped reads last.
+   * Returns null if sharding is disabled or not applicable.
+   */
+  private List<ShardedStreamReads.Shard> makeShards(List<Reference> references, 
+      Reference reference, String sequenceName, int sequenceStart, int sequenceEnd) {
+    if (settings.streamShards < 2 || sequenceName.equals("*")) {
+      return null;
+    }
+    if (!sequenceName.isEmpty()) {
+      final long end = sequenceEnd != 0 ? sequenceEnd : 
+        (reference != null ? reference.getLength() : 0);
+      if (end <= sequenceStart) {
+        LOG.warning("Can not shard " + sequenceName + 
+            ", the end of the range is unknown");
+        return null;
+      }
+      return ShardedStreamReads.split(sequenceName, sequenceStart, end, 
+          settings.streamShards);
+    }
+    final List<ShardedStreamReads.Shard> shards = 
+        new ArrayList<ShardedStreamReads.Shard>();
+    for (Reference ref : references) {
+      if (ref.getLength() > 0) {
+        shards.addAll(ShardedStreamReads.split(ref.getName(), 0, ref.getLength(), 
+            settings.streamShards));
+      }
+    }
+    shards.add(new ShardedStreamReads.Shard("*", 0, 0, true));
+    return shards;
+  }
     
   /**
    * Collect a list of references mentioned in this Readgroupset and get their meta data.
@@ -199,24 +298,9 @@ public class GenomicsDataSource
       }
     }
     
-    ReferenceServiceV1BlockingStub referenceSetStub = 
-        ReferenceServiceV1Grpc.newBlockingStub(getChannel());
-        
     Map<String, Reference> references = Maps.newHashMap();
     for (String referenceSetId : referenceSetIds) {
-      LOG.info("Getting reference set " + referenceSetId);
-      GetReferenceSetRequest getReferenceSetRequest = GetReferenceSetRequest
-          .newBuilder().setReferenceSetId(referenceSetId).build();
-      ReferenceSet referenceSet = 
-          referenceSetStub.getReferenceSet(getReferenceSetRequest);
-      if (referenceSet == null || referenceSet.getReferenceIdsCount() == 0) {
-        continue;
-      }
-      for (String referenceId : referenceSet.getReferenceIdsList()) {
-        LOG.fine("Getting reference  " + referenceId);
-        GetReferenceRequest getReferenceRequest = GetReferenceRequest
-            .newBuilder().setReferenceId(referenceId).build();
-        Reference reference = referenceSetStub.getReference(getReferenceRequest);
+      for (Reference reference : getReferenceCache().getReferences(referenceSetId)) {
         if (reference.getName() != null && !reference.getName().isEmpty()) {
           references.put(reference.getName(), reference);
           LOG.fine("Adding reference  " + reference.getName());
@@ -226,9 +310,84 @@ public class GenomicsDataSource
     return references;
   }
   
+  private synchronized ReferenceCache<Reference> getReferenceCache() {
+    if (referenceCache == null) {
+      referenceCache = new ReferenceSetCache();
+    }
+    return referenceCache;
+  }
+  
+  /**
+   * Fetches reference sets over GRPC and stores references as serialized protos.
+   */
+  private class ReferenceSetCache extends ReferenceCache<Reference> {
+    ReferenceSetCache() {
+      super(getReferenceCacheDirectory(), settings.referenceFetchThreads);
+    }
+
+    @Override
+    protected String getFormatName() {
+      return "grpc";
+    }
+
+    @Override
+    protected List<String> getReferenceIds(String referenceSetId)
+        throws IOException, GeneralSecurityException {
+      GetReferenceSetRequest getReferenceSetRequest = GetReferenceSetRequest
+          .newBuilder().setReferenceSetId(referenceSetId).build();
+      ReferenceSet referenceSet = ReferenceServiceV1Grpc.newBlockingStub(getChannel())
+          .getReferenceSet(getReferenceSetRequest);
+      return referenceSet != null ? referenceSet.getReferenceIdsList() : null;
+    }
+
+    @Override
+    protected Reference getReference(String referenceId)
+        throws IOException, GeneralSecurityException {
+      GetReferenceRequest getReferenceRequest = GetReferenceRequest
+          .newBuilder().setReferenceId(referenceId).build();
+      return ReferenceServiceV1Grpc.newBlockingStub(getChannel())
+          .getReference(getReferenceRequest);
+    }
+
+    @Override
+    protected byte[] serialize(Reference reference) {
+      return reference.toByteArray();
+    }
+
+    @Override
+    protected Reference deserialize(byte[] bytes) throws IOException {
+      return Reference.parseFrom(bytes);
+    }
+  }
+  
   @Override
   protected UnmappedReads createUnmappedReads() {
-    return new UnmappedReads();
+    if (useOffHeapUnmappedMates()) {
+      return new OffHeapUnmappedReads(settings.expectedUnmappedMates,
+          settings.unmappedMatesMemoryBytes, getSpillDirectory());
+    }
+    return new UnmappedReads(settings.expectedUnmappedMates);
+  }
+  
+  @Override
+  protected String getDataVersion(ReadGroupSet readGroupSet) throws IOException {
+    return Hashing.sha1().hashBytes(readGroupSet.toByteArray()).toString().substring(0, 16);
+  }
+  
+  @Override
+  protected UnmappedReads openUnmappedReads(File sidecar) throws IOException {
+    return OffHeapUnmappedReads.open(sidecar);
+  }
+  
+  @Override
+  protected void saveUnmappedReads(
+      com.google.cloud.genomics.gatk.common.UnmappedReads<Read> unmappedReads, 
+      File sidecar) throws IOException {
+    if (!(unmappedReads instanceof OffHeapUnmappedReads)) {
+      throw new IOException("Only off-heap unmapped mates can be saved, not " + 
+          unmappedReads.getClass().getSimpleName());
+    }
+    ((OffHeapUnmappedReads) unmappedReads).save(sidecar);
   }
   
   public static class ReadResponsesIterator implements Iterator<Read> {
@@ -271,6 +430,11 @@ public class GenomicsDataSource
             LOG.info("Iteration has passed beyond the end position: " + endPos +
                 ", current read is at " + 
                 nextRead.getAlignment().getPosition().getPosition());
+            // Nothing further is needed, stop the server from sending it.
+            if (responses instanceof StreamReadsIterator) {
+              ((StreamReadsIterator) responses).cancel();
+            }
+            nextRead = null;
             return false;
           }
         }
@@ -291,34 +455,76 @@ public class GenomicsDataSource
     }
     
   }
-  private Iterable<Read> streamReadsResponseToReadsIterator(
-      final Iterator<StreamReadsResponse> responseIterator, final int endPos) {
-    return new Iterable<Read>() {
-      @Override
-      public Iterator<Read> iterator() {
-        return new ReadResponsesIterator(responseIterator, endPos);
-      }
-    };
+  
+  /**
+   * Reads of a single stream, closing cancels the call.
+   */
+  static class StreamedReads implements Iterable<Read>, Closeable {
+    private final StreamReadsIterator responses;
+    private final int endPos;
+    
+    StreamedReads(StreamReadsIterator responses, int endPos) {
+      this.responses = responses;
+      this.endPos = endPos;
+    }
+    
+    @Override
+    public Iterator<Read> iterator() {
+      return new ReadResponsesIterator(responses, endPos);
+    }
+    
+    @Override
+    public void close() {
+      responses.cancel();
+    }
   }
   
   @Override
   protected Iterable<Read> getUnmappedReadsIterator(String readsetId) 
       throws GeneralSecurityException, IOException {
-    StreamingReadServiceBlockingStub streamingReadStub = 
-        StreamingReadServiceGrpc.newBlockingStub(getChannel());
     final StreamReadsRequest streamReadRequest = StreamReadsRequest.newBuilder()
         .setReadGroupSetId(readsetId)
         .setReferenceName("*")
         .build();
-    return streamReadsResponseToReadsIterator(
-        streamingReadStub.streamReads(streamReadRequest), 0);
+    return new ResumableStreamReads(getChannel(), streamReadRequest, 0,
+        StreamReadsIterator.DEFAULT_BUFFER_RESPONSES, null, settings);
   }
   
   @Override
-  public void close() {
-    if (channelImpl != null ) {
-      channelImpl.shutdown();
-      channelImpl = null;
+  protected void fetchCoverage(String readsetId, int bucketWidth, 
+      ReadCoverage.Builder builder) throws GeneralSecurityException, IOException {
+    final ReadServiceV1BlockingStub readStub = ReadServiceV1Grpc.newBlockingStub(getChannel());
+    String pageToken = "";
+    do {
+      final ListCoverageBucketsResponse response = readStub.listCoverageBuckets(
+          ListCoverageBucketsRequest.newBuilder()
+            .setReadGroupSetId(readsetId)
+            .setTargetBucketWidth(bucketWidth)
+            .setPageToken(pageToken)
+            .build());
+      for (CoverageBucket bucket : response.getCoverageBucketsList()) {
+        builder.add(bucket.getRange().getReferenceName(), bucket.getRange().getStart(), 
+            bucket.getRange().getEnd(), bucket.getMeanCoverage());
+      }
+      pageToken = response.getNextPageToken();
+    } while (!pageToken.isEmpty());
+  }
+  
+  @Override
+  public synchronized void close() {
+    shutdownExecutors();
+    if (channelPool != null) {
+      channelPool.logUtilization();
+      channelPool.shutdown();
+      channelPool = null;
+    }
+    if (channelExecutor != null) {
+      channelExecutor.shutdown();
+      channelExecutor = null;
+    }
+    if (authExecutor != null) {
+      authExecutor.shutdown();
+      authExecutor = null;
     }
     channel = null;
   }
@@ -30,7 +30,6 @@ public class GenomicsDataSourceFactoryGrpc
   @Override
   protected GenomicsDataSource makeDataSource(
       String rootUrl, Settings settings) {
-        return new GenomicsDataSource(rootUrl, settings.clientSecretsFile,
-            settings.apiKey, settings.noLocalServer);
+        return new GenomicsDataSource(rootUrl, settings);
   }
 }
@@ -0,0 +1,97 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common.grpc;
+
+import com.google.cloud.genomics.gatk.common.MateBloomFilter;
+import com.google.cloud.genomics.gatk.common.OffHeapMateStore;
+import com.google.cloud.genomics.gatk.common.UnmappedMatesSidecar;
+import com.google.genomics.v1.Read;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * UnmappedReads keeping mates as serialized protos in an OffHeapMateStore.
+ */
+public class OffHeapUnmappedReads extends UnmappedReads {
+  private final OffHeapMateStore store;
+
+  public OffHeapUnmappedReads(long expectedMates, long memoryBudget, 
+      File spillDirectory) {
+    super(expectedMates);
+    store = new OffHeapMateStore(memoryBudget, spillDirectory);
+  }
+
+  private OffHeapUnmappedReads(OffHeapMateStore store, MateBloomFilter filter) {
+    super(filter, store.getRecordCount());
+    this.store = store;
+  }
+
+  /**
+   * Opens mates saved to a sidecar with save.
+   */
+  public static OffHeapUnmappedReads open(File sidecar) throws IOException {
+    return new OffHeapUnmappedReads(UnmappedMatesSidecar.openStore(sidecar),
+        UnmappedMatesSidecar.openFilter(sidecar));
+  }
+
+  /**
+   * Saves the collected mates to a sidecar, for reuse by later runs.
+   */
+  public void save(File sidecar) throws IOException {
+    UnmappedMatesSidecar.save(sidecar, store, filter);
+  }
+
+  @Override
+  protected boolean addMate(String reference, String fragmentName, Read read) {
+    try {
+      store.add(reference, fragmentName, read.toByteArray());
+      return true;
+    } catch (IOException ex) {
+      LOG.warning("Failed to store unmapped mate for injection: " + ex);
+      return false;
+    }
+  }
+
+  @Override
+  protected ArrayList<Read> getMates(String reference, String fragmentName) {
+    try {
+      final List<byte[]> records = store.get(reference, fragmentName);
+      if (records == null) {
+        return null;
+      }
+      final ArrayList<Read> mates = new ArrayList<Read>(records.size());
+      for (byte[] record : records) {
+        mates.add(Read.parseFrom(record));
+      }
+      return mates;
+    } catch (IOException ex) {
+      throw new RuntimeException("Failed to load unmapped mates of " + fragmentName, ex);
+    }
+  }
+
+  /** Frees the store's memory and deletes its spill file */
+  @Override
+  public void close() {
+    store.close();
+  }
+
+  public OffHeapMateStore getStore() {
+    return store;
+  }
+}
@@ -15,7 +15,9 @@ limitations under the License.
 */
 package com.google.cloud.genomics.gatk.common.grpc;
 
+import com.google.cloud.genomics.gatk.common.ReadGroupSetSession;
 import com.google.cloud.genomics.gatk.common.ReadIteratorResourceBase;
+import com.google.cloud.genomics.gatk.common.ReadProjection;
 import com.google.cloud.genomics.gatk.common.UnmappedReads;
 import com.google.genomics.v1.Read;
 import com.google.genomics.v1.ReadGroupSet;
@@ -31,10 +33,27 @@ public class ReadIteratorResource extends ReadIteratorResourceBase<Read, ReadGro
       UnmappedReads<Read> unmappedReads, 
       Iterable<Read> iterable) {
     super(readGroupSet, references, unmappedReads, iterable, 
-        new GenomicsConverter());
+        new DirectGenomicsConverter());
+  }
+  
+  public ReadIteratorResource(ReadGroupSetSession<Read, ReadGroupSet, Reference> session,
+      UnmappedReads<Read> unmappedReads, 
+      Iterable<Read> iterable) {
+    this(session, unmappedReads, iterable, ReadProjection.ALL);
+  }
+  
+  public ReadIteratorResource(ReadGroupSetSession<Read, ReadGroupSet, Reference> session,
+      UnmappedReads<Read> unmappedReads, 
+      Iterable<Read> iterable, ReadProjection projection) {
+    super(session, unmappedReads, iterable, 
+        session.getConverter().withProjection(projection));
   }
   @Override
   protected String getReferenceNameFromRead(Read read) {
     return read.getAlignment().getPosition().getReferenceName();
   }
+  @Override
+  protected long estimateReadSize(Read read) {
+    return read.getSerializedSize();
+  }
 }
\ No newline at end of file
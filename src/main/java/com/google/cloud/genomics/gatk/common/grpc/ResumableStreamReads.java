@@ -0,0 +1,106 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common.grpc;
+
+import com.google.cloud.genomics.gatk.common.GenomicsDataSourceFactory.Settings;
+import com.google.cloud.genomics.gatk.common.ResumableReads;
+import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsRequest;
+
+import io.grpc.Channel;
+import io.grpc.Status;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads of a StreamReads call that is restarted, from the position of the last
+ * delivered read when it streams a single reference or the whole readset, if
+ * it fails with a status that may be transient.
+ */
+public class ResumableStreamReads extends ResumableReads<Read> {
+  /** Statuses of failures that are worth retrying */
+  private static final Set<Status.Code> TRANSIENT_CODES = EnumSet.of(
+      Status.Code.UNAVAILABLE, Status.Code.DEADLINE_EXCEEDED, Status.Code.INTERNAL,
+      Status.Code.RESOURCE_EXHAUSTED, Status.Code.ABORTED);
+
+  private final Channel channel;
+  private final StreamReadsRequest request;
+  private final int endPos;
+  private final int bufferResponses;
+
+  /**
+   * @param endPos position past which the stream is stopped, 0 for none.
+   * @param bufferResponses number of responses buffered ahead of the consumer.
+   * @param references of the readset in header order, along which a whole 
+   *  readset stream is resumed, null to restart it from the beginning.
+   */
+  public ResumableStreamReads(Channel channel, StreamReadsRequest request, int endPos,
+      int bufferResponses, List<String> references, Settings settings) {
+    super(request.getReferenceName(), references, settings.streamRetries, 
+        settings.retryInitialBackoffMillis, settings.retryMaxBackoffMillis);
+    this.channel = channel;
+    this.request = request;
+    this.endPos = endPos;
+    this.bufferResponses = bufferResponses;
+  }
+
+  @Override
+  protected Iterable<Read> open(String referenceName, long resumePosition) {
+    StreamReadsRequest resumedRequest = request;
+    int resumedEndPos = endPos;
+    if (!referenceName.equals(request.getReferenceName())) {
+      // A reference of a resumed whole readset stream.
+      resumedRequest = request.toBuilder()
+          .setReferenceName(referenceName)
+          .clearStart()
+          .clearEnd()
+          .build();
+      resumedEndPos = 0;
+    }
+    if (resumePosition > resumedRequest.getStart()) {
+      resumedRequest = resumedRequest.toBuilder().setStart(resumePosition).build();
+    }
+    return new GenomicsDataSource.StreamedReads(
+        new StreamReadsIterator(channel, resumedRequest, bufferResponses), resumedEndPos);
+  }
+
+  @Override
+  protected long getPosition(Read read) {
+    if (!read.hasAlignment() || !read.getAlignment().hasPosition()) {
+      return -1;
+    }
+    return read.getAlignment().getPosition().getPosition();
+  }
+
+  @Override
+  protected String getReferenceName(Read read) {
+    return read.getAlignment().getPosition().getReferenceName();
+  }
+
+  @Override
+  protected String getKey(Read read) {
+    return read.getFragmentName() + "/" + read.getReadNumber() + 
+        (read.getSecondaryAlignment() ? "/secondary" : "") + 
+        (read.getSupplementaryAlignment() ? "/supplementary" : "");
+  }
+
+  @Override
+  protected boolean isTransient(Throwable error) {
+    return TRANSIENT_CODES.contains(Status.fromThrowable(error).getCode());
+  }
+}
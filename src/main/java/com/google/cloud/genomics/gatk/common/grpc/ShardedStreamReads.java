@@ -0,0 +1,264 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common.grpc;
+
+import com.google.cloud.genomics.gatk.common.GenomicsDataSourceFactory.Settings;
+import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsRequest;
+
+import io.grpc.Channel;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * Streams reads of several shards concurrently and merges them back
+ * into the coordinate order of the shards.
+ * Each shard owns the reads whose alignment start falls into its range, so reads
+ * overlapping a shard boundary, which the API returns for both neighbouring shards,
+ * are emitted only once. Since shards are ordered and own disjoint ranges, merging
+ * reduces to draining shards one after another while the ones ahead keep
+ * streaming into their buffers.
+ * Shard streams are non-blocking, so no threads are needed beyond the channel's.
+ * Each shard stream is resumed on its own if it fails.
+ */
+public class ShardedStreamReads implements Iterable<Read>, Closeable {
+  private static final Logger LOG = Logger.getLogger(ShardedStreamReads.class.getName());
+
+  /**
+   * Shards shorter than this are not split any further, streaming them
+   * separately costs more than it saves.
+   */
+  static final long MIN_SHARD_LENGTH = 100000;
+
+  /** Number of responses each shard may buffer ahead of the consumer */
+  static final int SHARD_BUFFER_RESPONSES = 64;
+
+  /**
+   * A sub-range of a reference streamed with its own StreamReads call.
+   */
+  public static class Shard {
+    public Shard(String referenceName, long start, long end,
+        boolean ownsLeadingReads) {
+      this.referenceName = referenceName;
+      this.start = start;
+      this.end = end;
+      this.ownsLeadingReads = ownsLeadingReads;
+    }
+
+    /**
+     * Returns true iff the read starts in this shard and so has to be emitted by it.
+     * The first shard of a range also owns reads starting before the range and
+     * overlapping it. Reads without a position can not be attributed and are
+     * emitted by whichever shard returns them.
+     */
+    boolean owns(Read read) {
+      if (ownsLeadingReads || !read.hasAlignment() ||
+          !read.getAlignment().hasPosition()) {
+        return true;
+      }
+      return read.getAlignment().getPosition().getPosition() >= start;
+    }
+
+    StreamReadsRequest makeRequest(String readsetId) {
+      StreamReadsRequest.Builder builder = StreamReadsRequest.newBuilder()
+          .setReadGroupSetId(readsetId)
+          .setReferenceName(referenceName);
+      if (start != 0) {
+        builder.setStart(start);
+      }
+      if (end != 0) {
+        builder.setEnd(end);
+      }
+      return builder.build();
+    }
+
+    @Override
+    public String toString() {
+      return referenceName + ":" + start + "-" + end;
+    }
+
+    final String referenceName;
+    final long start;
+    final long end;
+    final boolean ownsLeadingReads;
+  }
+
+  /**
+   * Splits [start, end) of a reference into up to shardCount shards of
+   * at least MIN_SHARD_LENGTH bases.
+   */
+  public static List<Shard> split(String referenceName, long start, long end,
+      int shardCount) {
+    final long length = end - start;
+    final int count = (int) Math.max(1,
+        Math.min(shardCount, length / MIN_SHARD_LENGTH));
+    final List<Shard> shards = new ArrayList<Shard>(count);
+    for (int i = 0; i < count; i++) {
+      shards.add(new Shard(referenceName,
+          start + (length * i) / count,
+          start + (length * (i + 1)) / count,
+          i == 0));
+    }
+    return shards;
+  }
+
+  private final Channel channel;
+  private final String readsetId;
+  private final List<Shard> shards;
+  private final int concurrency;
+  private final Settings settings;
+  private final ArrayDeque<ShardStream> started = new ArrayDeque<ShardStream>();
+  /** Set once closed, no further shards are started. Guarded by started. */
+  private boolean closed;
+
+  public ShardedStreamReads(Channel channel, String readsetId, List<Shard> shards,
+      int concurrency, Settings settings) {
+    this.channel = channel;
+    this.readsetId = readsetId;
+    this.shards = shards;
+    this.concurrency = concurrency;
+    this.settings = settings;
+  }
+
+  /**
+   * Starts streaming the first shards, at most concurrency at a time in shard order,
+   * and returns the merged iterator. A further shard is started each time one is
+   * drained. Like the underlying streams this can be iterated only once.
+   */
+  @Override
+  public Iterator<Read> iterator() {
+    LOG.info("Streaming " + shards.size() + " shards, " + concurrency +
+        " at a time");
+    return new MergingIterator(shards.iterator());
+  }
+
+  /**
+   * Cancels all started shard streams, used when the iteration is abandoned early.
+   * May be called from any thread, the merged iteration then ends.
+   */
+  @Override
+  public void close() {
+    synchronized (started) {
+      closed = true;
+      for (ShardStream stream : started) {
+        stream.reads.close();
+      }
+      started.clear();
+    }
+  }
+
+  /**
+   * A started shard, its responses are buffered by the flow controlled stream
+   * so no thread is tied up while it waits to be drained. A failed stream is
+   * resumed where it stopped.
+   */
+  private class ShardStream {
+    final Shard shard;
+    final ResumableStreamReads reads;
+    final Iterator<Read> iterator;
+
+    ShardStream(Shard shard) {
+      this.shard = shard;
+      reads = new ResumableStreamReads(channel, shard.makeRequest(readsetId), 0,
+          SHARD_BUFFER_RESPONSES, null, settings);
+      iterator = reads.iterator();
+    }
+
+    /**
+     * Returns the next read owned by this shard, or null at the end of the shard.
+     */
+    Read take() {
+      try {
+        while (iterator.hasNext()) {
+          final Read read = iterator.next();
+          if (shard.owns(read)) {
+            return read;
+          }
+        }
+        return null;
+      } catch (RuntimeException ex) {
+        LOG.warning("Error streaming shard " + shard + ": " + ex);
+        throw new RuntimeException("Failed streaming shard " + shard, ex);
+      }
+    }
+  }
+
+  /**
+   * Drains shards in shard order, keeping up to concurrency shards streaming.
+   */
+  private class MergingIterator implements Iterator<Read> {
+    final Iterator<Shard> pending;
+    Read nextRead;
+
+    MergingIterator(Iterator<Shard> pending) {
+      this.pending = pending;
+      fillWindow();
+    }
+
+    private void fillWindow() {
+      synchronized (started) {
+        while (!closed && started.size() < concurrency && pending.hasNext()) {
+          started.addLast(new ShardStream(pending.next()));
+        }
+      }
+    }
+
+    private ShardStream current() {
+      synchronized (started) {
+        return started.peekFirst();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (nextRead == null) {
+        final ShardStream currentStream = current();
+        if (currentStream == null) {
+          return false;
+        }
+        nextRead = currentStream.take();
+        if (nextRead == null) {
+          synchronized (started) {
+            started.remove(currentStream);
+          }
+          fillWindow();
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public Read next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final Read toReturn = nextRead;
+      nextRead = null;
+      return toReturn;
+    }
+
+    @Override
+    public void remove() {
+      // Not implemented
+    }
+  }
+}
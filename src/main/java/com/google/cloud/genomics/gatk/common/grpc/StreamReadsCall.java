@@ -0,0 +1,99 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common.grpc;
+
+import com.google.genomics.v1.StreamReadsRequest;
+import com.google.genomics.v1.StreamReadsResponse;
+import com.google.genomics.v1.StreamingReadServiceGrpc;
+
+import io.grpc.Call;
+import io.grpc.Channel;
+import io.grpc.Metadata;
+import io.grpc.Status;
+
+/**
+ * Non-blocking StreamReads call with explicit inbound flow control.
+ * The server only sends as many responses as the listener has asked for via
+ * request(), so a consumer that requests more only when it has room for them
+ * bounds buffering without parking a thread on the stream.
+ * Listener callbacks run on the channel's executor, one at a time, and must not block.
+ * request and cancel may be called from any thread.
+ * The generated async stub is not used directly since it asks for the next
+ * response as soon as the previous one is handed over.
+ */
+public class StreamReadsCall {
+  /**
+   * Receives responses and the completion status of the call.
+   */
+  public interface Listener {
+    public void onResponse(StreamReadsResponse response);
+
+    /** Called once, with Status.OK if the stream completed normally. */
+    public void onClose(Status status);
+  }
+
+  private final Call<StreamReadsRequest, StreamReadsResponse> call;
+  private boolean cancelled;
+
+  /**
+   * Starts the call, no responses are delivered until they are requested.
+   */
+  public StreamReadsCall(Channel channel, StreamReadsRequest request,
+      final Listener listener) {
+    call = channel.newCall(StreamingReadServiceGrpc.CONFIG.streamReads);
+    call.start(new Call.Listener<StreamReadsResponse>() {
+      @Override
+      public void onHeaders(Metadata.Headers headers) {
+      }
+
+      @Override
+      public void onPayload(StreamReadsResponse response) {
+        listener.onResponse(response);
+      }
+
+      @Override
+      public void onClose(Status status, Metadata.Trailers trailers) {
+        listener.onClose(status);
+      }
+    }, new Metadata.Headers());
+    try {
+      call.sendPayload(request);
+      call.halfClose();
+    } catch (RuntimeException ex) {
+      call.cancel();
+      throw ex;
+    }
+  }
+
+  /**
+   * Asks the server for up to count more responses.
+   */
+  public synchronized void request(int count) {
+    if (!cancelled) {
+      call.request(count);
+    }
+  }
+
+  /**
+   * Cancels the call, the listener is closed with Status.CANCELLED.
+   */
+  public synchronized void cancel() {
+    if (!cancelled) {
+      cancelled = true;
+      call.cancel();
+    }
+  }
+}
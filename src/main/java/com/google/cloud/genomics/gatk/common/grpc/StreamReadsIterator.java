@@ -0,0 +1,147 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common.grpc;
+
+import com.google.genomics.v1.StreamReadsRequest;
+import com.google.genomics.v1.StreamReadsResponse;
+
+import io.grpc.Channel;
+import io.grpc.Status;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Blocking iterator adapter over StreamReadsCall.
+ * Keeps at most bufferSize responses requested or buffered: one more response
+ * is requested each time the consumer takes one out of the buffer.
+ * The call can be cancelled from any thread, the iteration then simply ends.
+ */
+public class StreamReadsIterator implements Iterator<StreamReadsResponse> {
+  /** Default number of responses buffered ahead of the consumer */
+  public static final int DEFAULT_BUFFER_RESPONSES = 16;
+
+  /** Queued after the last response, holds the final status of the call */
+  private static class Closed {
+    Closed(Status status) {
+      this.status = status;
+    }
+    final Status status;
+  }
+
+  private final BlockingQueue<Object> buffer = new LinkedBlockingQueue<Object>();
+  private final StreamReadsCall call;
+  private StreamReadsResponse next;
+  private boolean closed;
+  private volatile boolean cancelled;
+
+  public StreamReadsIterator(Channel channel, StreamReadsRequest request) {
+    this(channel, request, DEFAULT_BUFFER_RESPONSES);
+  }
+
+  public StreamReadsIterator(Channel channel, StreamReadsRequest request,
+      int bufferSize) {
+    call = new StreamReadsCall(channel, request, new StreamReadsCall.Listener() {
+      @Override
+      public void onResponse(StreamReadsResponse response) {
+        buffer.add(response);
+      }
+
+      @Override
+      public void onClose(Status status) {
+        buffer.add(new Closed(status));
+      }
+    });
+    call.request(bufferSize);
+  }
+
+  /**
+   * Returns true if the next response is available without blocking.
+   */
+  public boolean isReady() {
+    return next != null || closed || cancelled || !buffer.isEmpty();
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (cancelled) {
+      next = null;
+      return false;
+    }
+    if (next != null) {
+      return true;
+    }
+    if (closed) {
+      return false;
+    }
+    final Object item;
+    try {
+      item = buffer.take();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      cancel();
+      throw new RuntimeException("Interrupted while streaming reads", ex);
+    }
+    if (item instanceof Closed) {
+      closed = true;
+      final Status status = ((Closed) item).status;
+      if (!status.isOk() && !cancelled) {
+        throw status.asRuntimeException();
+      }
+      return false;
+    }
+    if (cancelled) {
+      return false;
+    }
+    next = (StreamReadsResponse) item;
+    // A slot was freed, let the server send one more response.
+    call.request(1);
+    return true;
+  }
+
+  @Override
+  public StreamReadsResponse next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final StreamReadsResponse toReturn = next;
+    next = null;
+    return toReturn;
+  }
+
+  /**
+   * Cancels the call, used when the iteration is abandoned early.
+   * May be called from any thread: buffered responses are dropped and a
+   * consumer blocked in hasNext wakes up and sees the end of the stream.
+   */
+  public void cancel() {
+    if (cancelled) {
+      return;
+    }
+    cancelled = true;
+    call.cancel();
+    buffer.clear();
+    // The close notification of the call may have been cleared above.
+    buffer.add(new Closed(Status.CANCELLED));
+  }
+
+  @Override
+  public void remove() {
+    // Not implemented
+  }
+}
@@ -1,5 +1,6 @@
 package com.google.cloud.genomics.gatk.common.grpc;
 
+import com.google.cloud.genomics.gatk.common.MateBloomFilter;
 import com.google.cloud.genomics.gatk.common.UnmappedReadsBase;
 import com.google.genomics.v1.Position;
 import com.google.genomics.v1.Read;
@@ -7,13 +8,23 @@ import com.google.genomics.v1.Read;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Genomics GRPC Api based implementation.
  */
-public class UnmappedReads extends UnmappedReadsBase<Read> { 
+public class UnmappedReads extends UnmappedReadsBase<Read> {
+  public UnmappedReads() {
+    super();
+  }
+  
+  public UnmappedReads(long expectedMates) {
+    super(expectedMates);
+  }
+  
+  protected UnmappedReads(MateBloomFilter filter, long readCount) {
+    super(filter, readCount);
+  }
+ 
   @Override
   public boolean isUnmappedMateOfMappedRead(Read read) {
     final boolean paired = read.getNumberReads() >= 2;
@@ -59,25 +70,8 @@ public class UnmappedReads extends UnmappedReadsBase<Read> {
       return false;
     }
     final String reference = read.getNextMatePosition().getReferenceName();
-    String key = getReadKey(read);
-    Map<String, ArrayList<Read>> reads = unmappedReads.get(reference);
-    if (reads == null) {
-      reads = new HashMap<String, ArrayList<Read>>();
-      unmappedReads.put(reference, reads);
-    }
-    ArrayList<Read> mates = reads.get(key);
-    if (mates == null) {
-      mates = new ArrayList<Read>();
-      reads.put(key, mates);
-    }
-    if (getReadCount() < MAX_READS) {
-      mates.add(read);
-      readCount++;
-      return true;
-    } else {
-      LOG.warning("Reached the limit of in-memory unmapped mates for injection.");
-    }
-    return false;
+    final String key = getReadKey(read);
+    return rememberMate(reference, key, read);
   }
   
   /**
@@ -98,15 +92,30 @@ public class UnmappedReads extends UnmappedReadsBase<Read> {
     final String reference = read.getAlignment().getPosition().getReferenceName();
     final String key = getReadKey(read);
     
-    Map<String, ArrayList<Read>> reads = unmappedReads.get(reference);
-    if (reads != null) {
-      final ArrayList<Read> mates = reads.get(key);
-      if (mates != null && mates.size() > 1) {
-        Collections.sort(mates, matesComparator);
-      }
-      return mates;
+    final ArrayList<Read> mates = findMates(reference, key);
+    if (mates != null && mates.size() > 1) {
+      Collections.sort(mates, matesComparator);
+    }
+    return mates;
+  }
+  
+  @Override
+  public String getMateReferenceName(Read read) {
+    if (!read.hasNextMatePosition() || read.getNextMatePosition() == null ||
+        read.getNextMatePosition().getReferenceName().isEmpty()) {
+      return null;
+    }
+    return read.getNextMatePosition().getReferenceName();
+  }
+  
+  @Override
+  public String getReferenceName(Read read) {
+    if (!read.hasAlignment() || read.getAlignment() == null ||
+        !read.getAlignment().hasPosition() || read.getAlignment().getPosition() == null ||
+        read.getAlignment().getPosition().getReferenceName().isEmpty()) {
+      return null;
     }
-    return null;
+    return read.getAlignment().getPosition().getReferenceName();
   }
   
   private static String getReadKey(Read read) {
@@ -0,0 +1,259 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common.rest;
+
+import com.google.api.services.genomics.model.CigarUnit;
+import com.google.api.services.genomics.model.LinearAlignment;
+import com.google.api.services.genomics.model.Position;
+import com.google.api.services.genomics.model.Read;
+import com.google.cloud.genomics.gatk.common.ReadProjection;
+import com.google.cloud.genomics.gatk.common.SAMHeaderLookup;
+import com.google.cloud.genomics.gatk.common.SAMRecordConversion;
+import com.google.cloud.genomics.utils.ReadUtils;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.TextCigarCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts reads straight into SAMRecord fields: bases and qualities into
+ * byte arrays, CIGAR units into a Cigar, and reference and read group names
+ * through lookups cached per header.
+ * Produces the same records as ReadUtils.makeSAMRecord, optionally as
+ * LazySAMRecords that decode bases, qualities, CIGAR and attributes only
+ * when they are first accessed, and without the fields a projection omits.
+ * Thread safe, so one instance can be shared by concurrent conversions.
+ */
+public class DirectGenomicsConverter extends GenomicsConverter {
+  private final boolean lazy;
+  private final ReadProjection projection;
+  private volatile SAMHeaderLookup lookup;
+
+  public DirectGenomicsConverter() {
+    this(false);
+  }
+
+  /**
+   * @param lazy true to return LazySAMRecords.
+   */
+  public DirectGenomicsConverter(boolean lazy) {
+    this(lazy, ReadProjection.ALL);
+  }
+
+  /**
+   * @param lazy true to return LazySAMRecords.
+   * @param projection fields to convert.
+   */
+  public DirectGenomicsConverter(boolean lazy, ReadProjection projection) {
+    this.lazy = lazy;
+    this.projection = projection;
+  }
+
+  @Override
+  public DirectGenomicsConverter withProjection(ReadProjection projection) {
+    if (projection == this.projection) {
+      return this;
+    }
+    final DirectGenomicsConverter converter = new DirectGenomicsConverter(lazy, projection);
+    converter.lookup = lookup;
+    return converter;
+  }
+
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
+
+  @Override
+  public SAMRecord makeSAMRecord(Read read, SAMFileHeader header) {
+    final SAMHeaderLookup lookup = SAMHeaderLookup.forHeader(this.lookup, header);
+    this.lookup = lookup;
+    
+    final SAMRecord record = lazy ? 
+        new LazySAMRecord(header, read, lookup, projection) : new SAMRecord(header);
+    if (read.getFragmentName() != null) {
+      record.setReadName(read.getFragmentName());
+    }
+    record.setFlags(ReadUtils.getFlags(read));
+    
+    final LinearAlignment alignment = read.getAlignment();
+    if (alignment != null) {
+      final Position position = alignment.getPosition();
+      if (position != null) {
+        if (position.getReferenceName() != null) {
+          SAMRecordConversion.setReferenceName(record, lookup, position.getReferenceName());
+        }
+        if (position.getPosition() != null) {
+          record.setAlignmentStart(position.getPosition().intValue() + 1);
+        }
+      }
+      if (alignment.getMappingQuality() != null) {
+        record.setMappingQuality(alignment.getMappingQuality());
+      }
+    }
+    
+    final Position matePosition = read.getNextMatePosition();
+    if (matePosition != null) {
+      if (matePosition.getReferenceName() != null) {
+        SAMRecordConversion.setMateReferenceName(record, lookup, 
+            matePosition.getReferenceName());
+      }
+      if (matePosition.getPosition() != null) {
+        record.setMateAlignmentStart(matePosition.getPosition().intValue() + 1);
+      }
+    }
+    if (read.getFragmentLength() != null) {
+      record.setInferredInsertSize(read.getFragmentLength());
+    }
+    
+    if (!lazy) {
+      if (projection.includesSequence() && read.getAlignedSequence() != null) {
+        SAMRecordConversion.setReadString(record, read.getAlignedSequence());
+      }
+      final byte[] qualities = projection.includesQualities() ? 
+          getBaseQualities(read) : null;
+      if (qualities != null) {
+        record.setBaseQualities(qualities);
+      }
+      setAttributes(record, lookup, read, projection.includesTags());
+      if (hasCigar(read)) {
+        final Cigar cigar = makeCigar(alignment.getCigar());
+        if (cigar != null) {
+          record.setCigar(cigar);
+          SAMRecordConversion.validateCigar(record);
+        } else {
+          record.setCigarString(ReadUtils.getCigarString(read));
+        }
+      }
+    }
+    return record;
+  }
+  
+  /** Returns the read group attribute of the read, or null if it has none */
+  static String getReadGroupId(SAMHeaderLookup lookup, Read read) {
+    if (read.getReadGroupId() == null) {
+      return null;
+    }
+    return lookup.getReadGroupId(read.getReadGroupId());
+  }
+  
+  /** Sets the read group and, if included, the info tags of the read */
+  static void setAttributes(SAMRecord record, SAMHeaderLookup lookup, Read read,
+      boolean includeTags) {
+    final String readGroupId = getReadGroupId(lookup, read);
+    if (readGroupId != null) {
+      record.setAttribute("RG", readGroupId);
+    }
+    final Map<String, List<String>> tags = read.getInfo();
+    if (tags == null || !includeTags) {
+      return;
+    }
+    for (Map.Entry<String, List<String>> tag : tags.entrySet()) {
+      if (tag.getValue() == null) {
+        continue;
+      }
+      final String type = ReadUtils.getTagType(tag.getKey());
+      for (String value : tag.getValue()) {
+        SAMRecordConversion.setAttribute(record, tag.getKey(), type, 
+            String.valueOf(value));
+      }
+    }
+  }
+  
+  /** Returns the qualities of the read, or null if it has none */
+  static byte[] getBaseQualities(Read read) {
+    final List<Integer> quality = read.getAlignedQuality();
+    if (quality == null || quality.isEmpty()) {
+      return null;
+    }
+    final int qualityCount = quality.size();
+    final byte[] qualities = new byte[qualityCount];
+    for (int i = 0; i < qualityCount; i++) {
+      qualities[i] = quality.get(i).byteValue();
+    }
+    return qualities;
+  }
+  
+  private static boolean hasCigar(Read read) {
+    return read.getAlignment() != null && read.getAlignment().getCigar() != null &&
+        !read.getAlignment().getCigar().isEmpty();
+  }
+  
+  /**
+   * Returns the CIGAR of the read, or null if it has none. Units that can not 
+   * be converted go through the CIGAR string, and fail as they did before.
+   */
+  static Cigar decodeCigar(Read read) {
+    if (!hasCigar(read)) {
+      return null;
+    }
+    final Cigar cigar = makeCigar(read.getAlignment().getCigar());
+    return cigar != null ? cigar : TextCigarCodec.decode(ReadUtils.getCigarString(read));
+  }
+  
+  /**
+   * Returns null if a unit can not be converted, the caller then falls back
+   * to the CIGAR string so the failure surfaces as it did before.
+   */
+  private static Cigar makeCigar(List<CigarUnit> units) {
+    final List<CigarElement> elements = new ArrayList<CigarElement>(units.size());
+    for (CigarUnit unit : units) {
+      final CigarOperator operator = getOperator(unit.getOperation());
+      final Long length = unit.getOperationLength();
+      if (operator == null || length == null || length < 0 || 
+          length > Integer.MAX_VALUE) {
+        return null;
+      }
+      elements.add(new CigarElement(length.intValue(), operator));
+    }
+    return new Cigar(elements);
+  }
+  
+  private static CigarOperator getOperator(String operation) {
+    if (operation == null) {
+      return null;
+    }
+    switch (operation) {
+      case "ALIGNMENT_MATCH":
+        return CigarOperator.M;
+      case "INSERT":
+        return CigarOperator.I;
+      case "DELETE":
+        return CigarOperator.D;
+      case "SKIP":
+        return CigarOperator.N;
+      case "CLIP_SOFT":
+        return CigarOperator.S;
+      case "CLIP_HARD":
+        return CigarOperator.H;
+      case "PAD":
+        return CigarOperator.P;
+      case "SEQUENCE_MATCH":
+        return CigarOperator.EQ;
+      case "SEQUENCE_MISMATCH":
+        return CigarOperator.X;
+      default:
+        return null;
+    }
+  }
+}
@@ -19,8 +19,11 @@ import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.genomics.Genomics;
+import com.google.api.services.genomics.model.CoverageBucket;
+import com.google.api.services.genomics.model.ListCoverageBucketsResponse;
 import com.google.api.services.genomics.model.Read;
 import com.google.api.services.genomics.model.ReadGroup;
 import com.google.api.services.genomics.model.ReadGroupSet;
@@ -28,16 +31,26 @@ import com.google.api.services.genomics.model.Reference;
 import com.google.api.services.genomics.model.ReferenceSet;
 import com.google.api.services.genomics.model.SearchReadsRequest;
 import com.google.cloud.genomics.gatk.common.GenomicsDataSourceBase;
+import com.google.cloud.genomics.gatk.common.GenomicsDataSourceFactory.Settings;
+import com.google.cloud.genomics.gatk.common.ReadCoverage;
+import com.google.cloud.genomics.gatk.common.ReadGroupSetSession;
+import com.google.cloud.genomics.gatk.common.ReadProjection;
+import com.google.cloud.genomics.gatk.common.ReferenceCache;
+import com.google.cloud.genomics.gatk.common.ResumableReads;
 import com.google.cloud.genomics.utils.Paginator;
 import com.google.cloud.genomics.utils.Paginator.ShardBoundary;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -47,9 +60,18 @@ import java.util.Set;
  */
 public class GenomicsDataSource 
     extends GenomicsDataSourceBase<Read, ReadGroupSet, Reference> {
+  /** 
+   * Read fields every projection fetches, the ones conversion and unmapped
+   * mate matching need.
+   */
+  private static final String READ_FIELDS = "id,readGroupId,readGroupSetId," +
+      "fragmentName,properPlacement,duplicateFragment,fragmentLength,readNumber," +
+      "numberReads,failedVendorQualityChecks,alignment,secondaryAlignment," +
+      "supplementaryAlignment,nextMatePosition";
  
   /** Genomics API stub used for regular API access */ 
   private Genomics api;
+  private ReferenceCache<Reference> referenceCache;
  
   public GenomicsDataSource(String rootUrl, 
       String clientSecretsFilename, 
@@ -58,7 +80,11 @@ public class GenomicsDataSource
     super(rootUrl, clientSecretsFilename, apiKey, noLocalServer);
   }
   
-  private Genomics getApi() throws GeneralSecurityException, IOException {
+  public GenomicsDataSource(String rootUrl, Settings settings) {
+    super(rootUrl, settings);
+  }
+  
+  private synchronized Genomics getApi() throws GeneralSecurityException, IOException {
     if (api == null) {
       api = initGenomicsApi();
     }
@@ -95,20 +121,35 @@ public class GenomicsDataSource
   }
     
   @Override
-  public ReadIteratorResource getReads(String readsetId, 
-      String sequenceName, int sequenceStart, int sequenceEnd) 
-          throws IOException, GeneralSecurityException {
-    LOG.info("Getting readset " + readsetId + ", sequence " + sequenceName + 
-        ", start=" + sequenceStart + ", end=" + sequenceEnd);    
+  public ReadGroupSetSession<Read, ReadGroupSet, Reference> openSession(String readsetId) 
+      throws IOException, GeneralSecurityException {
+    LOG.info("Getting readset " + readsetId);
     final Genomics stub = getApi();
-
     try {
       ReadGroupSet readGroupSet = stub.readgroupsets().get(readsetId).execute();
       String datasetId = readGroupSet.getDatasetId();
       LOG.info("Found readset " + readsetId + ", dataset " + datasetId);
       
-      final Map<String, Reference> references = getReferences(readGroupSet);
-      final Reference reference = references.get(sequenceName);
+      return new ReadGroupSetSession<Read, ReadGroupSet, Reference>(readsetId, 
+          readGroupSet, getReferences(readGroupSet), 
+          new DirectGenomicsConverter(settings.lazySAMRecords));
+    } catch (GoogleJsonResponseException ex) {
+      throw toIOException(ex);
+    }
+  }
+    
+  @Override
+  public ReadIteratorResource getReads(
+      ReadGroupSetSession<Read, ReadGroupSet, Reference> session, 
+      String sequenceName, int sequenceStart, int sequenceEnd, 
+      ReadProjection projection) throws IOException, GeneralSecurityException {
+    final String readsetId = session.getReadsetId();
+    LOG.info("Getting reads of readset " + readsetId + ", sequence " + sequenceName + 
+        ", start=" + sequenceStart + ", end=" + sequenceEnd);    
+    final Genomics stub = getApi();
+
+    try {
+      final Reference reference = session.getReference(sequenceName);
       if (reference != null) {
           LOG.info("Reference for sequence name " + sequenceName + " is found, length="
               + String.valueOf(reference.getLength()));
@@ -119,30 +160,44 @@ public class GenomicsDataSource
           String.valueOf(sequenceStart) + "-" + String.valueOf(sequenceEnd));
       com.google.cloud.genomics.gatk.common.UnmappedReads<Read> unmappedReads = null;
       if (sequenceName.isEmpty()) {
-        unmappedReads = getUnmappedMatesOfMappedReads(readsetId); 
-      }
-      Paginator.Reads searchReads = Paginator.Reads.create(stub, ShardBoundary.OVERLAPS);
-      SearchReadsRequest readRequest = new SearchReadsRequest()
-        .setReadGroupSetIds(Arrays.asList(readsetId))
-        .setReferenceName(sequenceName)
-        .setPageSize(2048);
-      if (sequenceStart != 0) {
-        readRequest.setStart(Long.valueOf(sequenceStart));
+        unmappedReads = getUnmappedMatesOfMappedReads(session); 
       }
-      if (sequenceEnd != 0) {
-        readRequest.setEnd(Long.valueOf(sequenceEnd));
-      }
-      Iterable<Read> reads = searchReads.search(readRequest); 
+      final Iterable<Read> reads = new ResumableSearch(stub, readsetId, sequenceName,
+          sequenceStart, sequenceEnd, getFields(projection), getReferenceNames(session));
       
-      return new ReadIteratorResource(readGroupSet, 
-          Lists.newArrayList(references.values()), unmappedReads, reads);
+      return configureResource(new ReadIteratorResource(session, 
+          unmappedReads, reads, projection));
     } catch (GoogleJsonResponseException ex) {
-      LOG.warning("Genomics API call failure: " + ex.getMessage());
-      if (ex.getDetails() == null) {
-        throw ex;
-      }
-      throw new IOException(ex.getDetails().getMessage());
+      throw toIOException(ex);
+    }
+  }
+  
+  /**
+   * Returns the partial response mask of the projection, or null for all fields.
+   */
+  private static String getFields(ReadProjection projection) {
+    if (projection == ReadProjection.ALL) {
+      return null;
+    }
+    final StringBuilder fields = new StringBuilder(READ_FIELDS);
+    if (projection.includesSequence()) {
+      fields.append(",alignedSequence");
+    }
+    if (projection.includesQualities()) {
+      fields.append(",alignedQuality");
     }
+    if (projection.includesTags()) {
+      fields.append(",info");
+    }
+    return "nextPageToken,alignments(" + fields + ")";
+  }
+  
+  private static IOException toIOException(GoogleJsonResponseException ex) {
+    LOG.warning("Genomics API call failure: " + ex.getMessage());
+    if (ex.getDetails() == null) {
+      return ex;
+    }
+    return new IOException(ex.getDetails().getMessage());
   }
   
   /**
@@ -171,14 +226,7 @@ public class GenomicsDataSource
     
     Map<String, Reference> references = Maps.newHashMap();
     for (String referenceSetId : referenceSetIds) {
-      LOG.info("Getting reference set " + referenceSetId);
-      ReferenceSet referenceSet = getApi().referencesets().get(referenceSetId).execute();
-      if (referenceSet == null || referenceSet.getReferenceIds() == null) {
-        continue;
-      }
-      for (String referenceId : referenceSet.getReferenceIds()) {
-        LOG.fine("Getting reference  " + referenceId);
-        Reference reference = getApi().references().get(referenceId).execute();
+      for (Reference reference : getReferenceCache().getReferences(referenceSetId)) {
         if (reference.getName() != null) {
           references.put(reference.getName(), reference);
           LOG.fine("Adding reference  " + reference.getName());
@@ -188,25 +236,247 @@ public class GenomicsDataSource
     return references;
   }
 
+  private synchronized ReferenceCache<Reference> getReferenceCache() {
+    if (referenceCache == null) {
+      referenceCache = new ReferenceSetCache();
+    }
+    return referenceCache;
+  }
+  
+  /**
+   * Fetches reference sets over REST and stores references as JSON.
+   */
+  private class ReferenceSetCache extends ReferenceCache<Reference> {
+    ReferenceSetCache() {
+      super(getReferenceCacheDirectory(), settings.referenceFetchThreads);
+    }
+
+    @Override
+    protected String getFormatName() {
+      return "rest";
+    }
+
+    @Override
+    protected List<String> getReferenceIds(String referenceSetId)
+        throws IOException, GeneralSecurityException {
+      ReferenceSet referenceSet = getApi().referencesets().get(referenceSetId).execute();
+      return referenceSet != null ? referenceSet.getReferenceIds() : null;
+    }
+
+    @Override
+    protected Reference getReference(String referenceId)
+        throws IOException, GeneralSecurityException {
+      return getApi().references().get(referenceId).execute();
+    }
+
+    @Override
+    protected byte[] serialize(Reference reference) throws IOException {
+      return JacksonFactory.getDefaultInstance().toByteArray(reference);
+    }
+
+    @Override
+    protected Reference deserialize(byte[] bytes) throws IOException {
+      return JacksonFactory.getDefaultInstance().fromInputStream(
+          new ByteArrayInputStream(bytes), Reference.class);
+    }
+  }
+
   @Override
   protected UnmappedReads createUnmappedReads() {
-    return new UnmappedReads();
+    if (useOffHeapUnmappedMates()) {
+      return new OffHeapUnmappedReads(settings.expectedUnmappedMates,
+          settings.unmappedMatesMemoryBytes, getSpillDirectory());
+    }
+    return new UnmappedReads(settings.expectedUnmappedMates);
+  }
+  
+  @Override
+  protected String getDataVersion(ReadGroupSet readGroupSet) throws IOException {
+    final byte[] serialized = JacksonFactory.getDefaultInstance().toByteArray(readGroupSet);
+    return Hashing.sha1().hashBytes(serialized).toString()
+        .substring(0, 16);
+  }
+  
+  @Override
+  protected UnmappedReads openUnmappedReads(File sidecar) throws IOException {
+    return OffHeapUnmappedReads.open(sidecar);
+  }
+  
+  @Override
+  protected void saveUnmappedReads(
+      com.google.cloud.genomics.gatk.common.UnmappedReads<Read> unmappedReads, 
+      File sidecar) throws IOException {
+    if (!(unmappedReads instanceof OffHeapUnmappedReads)) {
+      throw new IOException("Only off-heap unmapped mates can be saved, not " + 
+          unmappedReads.getClass().getSimpleName());
+    }
+    ((OffHeapUnmappedReads) unmappedReads).save(sidecar);
   }
 
   @Override
   protected Iterable<Read> getUnmappedReadsIterator(String readsetId) throws GeneralSecurityException, IOException {
-    final Paginator.Reads searchUnmappedReads = 
-        Paginator.Reads.create(getApi(), ShardBoundary.OVERLAPS);
-    final SearchReadsRequest unmappedReadRequest = new SearchReadsRequest()
-      .setReadGroupSetIds(Arrays.asList(readsetId))
-      .setReferenceName("*");
-    final Iterable<Read> unmappedReadsIterable = 
-        searchUnmappedReads.search(unmappedReadRequest);
-    return unmappedReadsIterable;
+    return new ResumableSearch(getApi(), readsetId, "*", 0, 0, null, null);
+  }
+  
+  /**
+   * Reads of a paginated search that is restarted if a page fails for good
+   * after the retries of the Paginator, from the position of the last read
+   * when it searches a single reference.
+   */
+  private class ResumableSearch extends ResumableReads<Read> {
+    private final Genomics stub;
+    private final String readsetId;
+    private final String sequenceName;
+    private final int sequenceStart;
+    private final int sequenceEnd;
+    private final String fields;
+    
+    /**
+     * @param fields partial response mask, null for all fields.
+     * @param references of the readset in header order, along which a whole
+     *  readset search is resumed, null to restart it from the beginning.
+     */
+    ResumableSearch(Genomics stub, String readsetId, String sequenceName, 
+        int sequenceStart, int sequenceEnd, String fields, List<String> references) {
+      super(sequenceName, references, settings.streamRetries, 
+          settings.retryInitialBackoffMillis, settings.retryMaxBackoffMillis);
+      this.stub = stub;
+      this.readsetId = readsetId;
+      this.sequenceName = sequenceName;
+      this.sequenceStart = sequenceStart;
+      this.sequenceEnd = sequenceEnd;
+      this.fields = fields;
+    }
+    
+    @Override
+    protected Iterable<Read> open(String referenceName, long resumePosition) {
+      final Paginator.Reads searchReads = 
+          Paginator.Reads.create(stub, ShardBoundary.OVERLAPS);
+      final SearchReadsRequest readRequest = new SearchReadsRequest()
+        .setReadGroupSetIds(Arrays.asList(readsetId))
+        .setReferenceName(referenceName)
+        .setPageSize(2048);
+      // Other references of a resumed whole readset search are not bounded.
+      final boolean bounded = referenceName.equals(sequenceName);
+      final long start = Math.max(bounded ? sequenceStart : 0, resumePosition);
+      if (start != 0) {
+        readRequest.setStart(Long.valueOf(start));
+      }
+      if (bounded && sequenceEnd != 0) {
+        readRequest.setEnd(Long.valueOf(sequenceEnd));
+      }
+      return new PagedReads(fields != null ? 
+          searchReads.search(readRequest, fields) : searchReads.search(readRequest));
+    }
+    
+    @Override
+    protected long getPosition(Read read) {
+      if (read.getAlignment() == null || read.getAlignment().getPosition() == null ||
+          read.getAlignment().getPosition().getPosition() == null) {
+        return -1;
+      }
+      return read.getAlignment().getPosition().getPosition();
+    }
+    
+    @Override
+    protected String getReferenceName(Read read) {
+      return read.getAlignment().getPosition().getReferenceName();
+    }
+    
+    @Override
+    protected String getKey(Read read) {
+      return read.getFragmentName() + "/" + read.getReadNumber() + 
+          (Boolean.TRUE.equals(read.getSecondaryAlignment()) ? "/secondary" : "") + 
+          (Boolean.TRUE.equals(read.getSupplementaryAlignment()) ? "/supplementary" : "");
+    }
+    
+    /**
+     * Failed requests are transient unless the server rejected them,
+     * apart from rate limiting.
+     */
+    @Override
+    protected boolean isTransient(Throwable error) {
+      for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+        if (cause instanceof HttpResponseException) {
+          final int status = ((HttpResponseException) cause).getStatusCode();
+          return status == 429 || status >= 500;
+        }
+        if (cause instanceof IOException) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+  
+  /**
+   * Reads of a paginated search, closing abandons the search so that no
+   * further pages are requested. May be closed from any thread.
+   */
+  private static class PagedReads implements Iterable<Read>, Closeable {
+    private final Iterable<Read> pages;
+    private volatile boolean closed;
+    
+    PagedReads(Iterable<Read> pages) {
+      this.pages = pages;
+    }
+    
+    @Override
+    public Iterator<Read> iterator() {
+      final Iterator<Read> reads = pages.iterator();
+      return new Iterator<Read>() {
+        @Override
+        public boolean hasNext() {
+          return !closed && reads.hasNext();
+        }
+
+        @Override
+        public Read next() {
+          return reads.next();
+        }
+
+        @Override
+        public void remove() {
+          // Not implemented
+        }
+      };
+    }
+    
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+  
+  @Override
+  protected void fetchCoverage(String readsetId, int bucketWidth, 
+      ReadCoverage.Builder builder) throws GeneralSecurityException, IOException {
+    final Genomics stub = getApi();
+    String pageToken = null;
+    try {
+      do {
+        final ListCoverageBucketsResponse response = stub.readgroupsets()
+            .coveragebuckets().list(readsetId)
+            .setTargetBucketWidth((long) bucketWidth)
+            .setPageToken(pageToken)
+            .execute();
+        if (response.getCoverageBuckets() != null) {
+          for (CoverageBucket bucket : response.getCoverageBuckets()) {
+            builder.add(bucket.getRange().getReferenceName(), 
+                bucket.getRange().getStart(), bucket.getRange().getEnd(), 
+                bucket.getMeanCoverage() != null ? bucket.getMeanCoverage() : 0);
+          }
+        }
+        pageToken = response.getNextPageToken();
+      } while (pageToken != null && !pageToken.isEmpty());
+    } catch (GoogleJsonResponseException ex) {
+      throw toIOException(ex);
+    }
   }
   
   @Override
-  public void close() {
+  public synchronized void close() {
+    shutdownExecutors();
     api = null;
   }
 }
@@ -29,7 +29,6 @@ public class GenomicsDataSourceFactoryRest
   @Override
   protected GenomicsDataSource makeDataSource(
       String rootUrl, Settings settings) {
-        return new GenomicsDataSource(rootUrl, settings.clientSecretsFile,
-            settings.apiKey, settings.noLocalServer);
+        return new GenomicsDataSource(rootUrl, settings);
   }
 }
@@ -0,0 +1,78 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.common.rest;
+
+import com.google.api.services.genomics.model.Read;
+import com.google.cloud.genomics.gatk.common.LazySAMRecordBase;
+import com.google.cloud.genomics.gatk.common.ReadProjection;
+import com.google.cloud.genomics.gatk.common.SAMHeaderLookup;
+import com.google.cloud.genomics.gatk.common.SAMRecordConversion;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.SAMFileHeader;
+
+/**
+ * Genomics REST Api based implementation.
+ */
+public class LazySAMRecord extends LazySAMRecordBase<Read> {
+  private final SAMHeaderLookup lookup;
+  private final ReadProjection projection;
+
+  public LazySAMRecord(SAMFileHeader header, Read read, SAMHeaderLookup lookup,
+      ReadProjection projection) {
+    super(header, read);
+    this.lookup = lookup;
+    this.projection = projection;
+  }
+
+  @Override
+  protected int getReadLength(Read read) {
+    return projection.includesSequence() && read.getAlignedSequence() != null ? 
+        SAMRecordConversion.getReadLength(read.getAlignedSequence()) : 0;
+  }
+
+  @Override
+  protected byte[] decodeReadBases(Read read) {
+    return projection.includesSequence() && read.getAlignedSequence() != null ? 
+        SAMRecordConversion.toReadBases(read.getAlignedSequence()) : null;
+  }
+
+  @Override
+  protected byte[] decodeBaseQualities(Read read) {
+    return projection.includesQualities() ? 
+        DirectGenomicsConverter.getBaseQualities(read) : null;
+  }
+
+  @Override
+  protected Cigar decodeCigar(Read read) {
+    return DirectGenomicsConverter.decodeCigar(read);
+  }
+
+  @Override
+  protected void decodeAttributes(Read read) {
+    DirectGenomicsConverter.setAttributes(this, lookup, read, projection.includesTags());
+  }
+
+  @Override
+  protected boolean isReadGroupFromId(Read read) {
+    return !projection.includesTags() || read.getInfo() == null || !read.getInfo().containsKey("RG");
+  }
+
+  @Override
+  protected String getReadGroupId(Read read) {
+    return DirectGenomicsConverter.getReadGroupId(lookup, read);
+  }
+}
@@ -18,7 +18,9 @@ package com.google.cloud.genomics.gatk.common.rest;
 import com.google.api.services.genomics.model.Read;
 import com.google.api.services.genomics.model.ReadGroupSet;
 import com.google.api.services.genomics.model.Reference;
+import com.google.cloud.genomics.gatk.common.ReadGroupSetSession;
 import com.google.cloud.genomics.gatk.common.ReadIteratorResourceBase;
+import com.google.cloud.genomics.gatk.common.ReadProjection;
 import com.google.cloud.genomics.gatk.common.UnmappedReads;
 
 import java.util.List;
@@ -27,14 +29,38 @@ import java.util.List;
  * Genomics REST Api based implementation.
  */
 public class ReadIteratorResource extends ReadIteratorResourceBase<Read, ReadGroupSet, Reference> {
+  /** Rough heap footprint of a parsed JSON Read without sequence and qualities */
+  private static final long READ_OVERHEAD_BYTES = 1024;
+  /** Rough heap footprint of a base and its boxed quality in a parsed JSON Read */
+  private static final long BYTES_PER_BASE = 20;
+  
   public ReadIteratorResource(ReadGroupSet readGroupSet, List<Reference> references,
       UnmappedReads<Read> unmappedReads, 
       Iterable<Read> iterable) {
     super(readGroupSet, references, unmappedReads, iterable, 
-        new GenomicsConverter());
+        new DirectGenomicsConverter());
+  }
+  
+  public ReadIteratorResource(ReadGroupSetSession<Read, ReadGroupSet, Reference> session,
+      UnmappedReads<Read> unmappedReads, 
+      Iterable<Read> iterable) {
+    this(session, unmappedReads, iterable, ReadProjection.ALL);
+  }
+  
+  public ReadIteratorResource(ReadGroupSetSession<Read, ReadGroupSet, Reference> session,
+      UnmappedReads<Read> unmappedReads, 
+      Iterable<Read> iterable, ReadProjection projection) {
+    super(session, unmappedReads, iterable, 
+        session.getConverter().withProjection(projection));
   }
   @Override
   protected String getReferenceNameFromRead(Read read) {
     return read.getAlignment().getPosition().getReferenceName();
   }
+  @Override
+  protected long estimateReadSize(Read read) {
+    final String sequence = read.getAlignedSequence();
+    return READ_OVERHEAD_BYTES + 
+        (sequence != null ? sequence.length() * BYTES_PER_BASE : 0);
+  }
 }
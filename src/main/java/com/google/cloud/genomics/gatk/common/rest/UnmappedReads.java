@@ -2,13 +2,12 @@ package com.google.cloud.genomics.gatk.common.rest;
 
 import com.google.api.services.genomics.model.Position;
 import com.google.api.services.genomics.model.Read;
+import com.google.cloud.genomics.gatk.common.MateBloomFilter;
 import com.google.cloud.genomics.gatk.common.UnmappedReadsBase;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * In-memory container for unmapped reads, so we can inject them
@@ -27,7 +26,19 @@ import java.util.Map;
  * Since most of the tools do precious little with unmapped reads we hope
  * we can get away with this.
  */
-public class UnmappedReads extends UnmappedReadsBase<Read> {  
+public class UnmappedReads extends UnmappedReadsBase<Read> {
+  public UnmappedReads() {
+    super();
+  }
+  
+  public UnmappedReads(long expectedMates) {
+    super(expectedMates);
+  }
+  
+  protected UnmappedReads(MateBloomFilter filter, long readCount) {
+    super(filter, readCount);
+  }
+  
   
   @Override
   public boolean isUnmappedMateOfMappedRead(Read read) {
@@ -72,25 +83,8 @@ public class UnmappedReads extends UnmappedReadsBase<Read> {
       return false;
     }
     final String reference = read.getNextMatePosition().getReferenceName();
-    String key = getReadKey(read);
-    Map<String, ArrayList<Read>> reads = unmappedReads.get(reference);
-    if (reads == null) {
-      reads = new HashMap<String, ArrayList<Read>>();
-      unmappedReads.put(reference, reads);
-    }
-    ArrayList<Read> mates = reads.get(key);
-    if (mates == null) {
-      mates = new ArrayList<Read>();
-      reads.put(key, mates);
-    }
-    if (getReadCount() < MAX_READS) {
-      mates.add(read);
-      readCount++;
-      return true;
-    } else {
-      LOG.warning("Reached the limit of in-memory unmapped mates for injection.");
-    }
-    return false;
+    final String key = getReadKey(read);
+    return rememberMate(reference, key, read);
   }
   
   /**
@@ -113,15 +107,27 @@ public class UnmappedReads extends UnmappedReadsBase<Read> {
     final String reference = read.getAlignment().getPosition().getReferenceName();
     final String key = getReadKey(read);
     
-    Map<String, ArrayList<Read>> reads = unmappedReads.get(reference);
-    if (reads != null) {
-      final ArrayList<Read> mates = reads.get(key);
-      if (mates != null && mates.size() > 1) {
-        Collections.sort(mates, matesComparator);
-      }
-      return mates;
+    final ArrayList<Read> mates = findMates(reference, key);
+    if (mates != null && mates.size() > 1) {
+      Collections.sort(mates, matesComparator);
+    }
+    return mates;
+  }
+  
+  @Override
+  public String getMateReferenceName(Read read) {
+    if (read.getNextMatePosition() == null) {
+      return null;
+    }
+    return read.getNextMatePosition().getReferenceName();
+  }
+  
+  @Override
+  public String getReferenceName(Read read) {
+    if (read.getAlignment() == null || read.getAlignment().getPosition() == null) {
+      return null;
     }
-    return null;
+    return read.getAlignment().getPosition().getReferenceName();
   }
   
   private static String getReadKey(Read read) {
@@ -0,0 +1,87 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileSpan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Span of chunks of a GA4GHIndex, whose file pointers encode loci.
+ * Spans returned by the BAM index itself are htsjdk spans, both kinds can be
+ * iterated by GA4GHIndexing and compared with each other.
+ */
+public class GA4GHFileSpan implements SAMFileSpan {
+  private final List<Chunk> chunks;
+
+  public GA4GHFileSpan(List<Chunk> chunks) {
+    this.chunks = new ArrayList<Chunk>(chunks);
+  }
+
+  public List<Chunk> getChunks() {
+    return Collections.unmodifiableList(chunks);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return chunks.isEmpty();
+  }
+
+  @Override
+  public SAMFileSpan removeContentsBefore(SAMFileSpan fileSpan) {
+    final List<Chunk> otherChunks = fileSpan == null ? 
+        Collections.<Chunk>emptyList() : GA4GHIndex.getChunks(fileSpan);
+    if (otherChunks.isEmpty()) {
+      return new GA4GHFileSpan(chunks);
+    }
+    final long start = otherChunks.get(0).getChunkStart();
+    final List<Chunk> remaining = new ArrayList<Chunk>(chunks.size());
+    for (Chunk chunk : chunks) {
+      if (chunk.getChunkEnd() <= start) {
+        continue;
+      }
+      remaining.add(chunk.getChunkStart() >= start ? chunk : 
+          new Chunk(start, chunk.getChunkEnd()));
+    }
+    return new GA4GHFileSpan(remaining);
+  }
+
+  @Override
+  public SAMFileSpan getContentsFollowing() {
+    if (chunks.isEmpty()) {
+      throw new SAMException(
+          "Unable to get the file pointer following this one: no data present.");
+    }
+    return new GA4GHFileSpan(Collections.singletonList(
+        new Chunk(chunks.get(chunks.size() - 1).getChunkEnd(), Long.MAX_VALUE)));
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder result = new StringBuilder();
+    for (Chunk chunk : chunks) {
+      if (result.length() > 0) {
+        result.append(';');
+      }
+      result.append(chunk);
+    }
+    return result.toString();
+  }
+}
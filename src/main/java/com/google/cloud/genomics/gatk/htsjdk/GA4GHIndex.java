@@ -0,0 +1,340 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import com.google.cloud.genomics.gatk.common.ReadCoverage;
+
+import htsjdk.samtools.BrowseableBAMIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.GenomicIndexUtil;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSpan;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BinaryCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Synthetic BAM index of a GA4GH readset, built from its coverage, so that
+ * tools can plan traversals and skip regions without reads without streaming
+ * them.
+ * The BAMIndex interfaces can only be implemented within htsjdk, so the index
+ * is written in the BAI format and opened by htsjdk along with a BAM that 
+ * holds just the header.
+ * <p>
+ * There is no file, so file pointers encode loci instead: the block address
+ * is the reference index plus one followed by a 32-bit 1-based position, and
+ * unmapped reads come after all references, keeping the order of a
+ * coordinate sorted BAM. File pointers are signed, so there can be at most 
+ * MAX_REFERENCES references. Like a record of a BAM, each read is at a single
+ * file pointer, that of its alignment start, and a chunk [a, b) stands for
+ * the reads starting from a to just before b.
+ * Chunks only cover positions with coverage, split at the 16 kb windows of
+ * the leaf bins that hold them. Reads are not binned by their end, which is 
+ * not known, so the bin of each window also holds the chunks of the longest 
+ * read length before it, and the linear index points that far back, so that 
+ * regions find the reads that start before them. Record counts are not known, 
+ * so there is no metadata.
+ */
+public class GA4GHIndex {
+  private static final int LEAF_LEVEL = GenomicIndexUtil.LEVEL_STARTS.length - 1;
+  private static final int WINDOW_SHIFT = 14;
+  private static final byte[] BAI_MAGIC = { 'B', 'A', 'I', 1 };
+  /** 
+   * Most references file pointers can encode, keeping them non-negative with 
+   * the unmapped reads after them.
+   */
+  public static final int MAX_REFERENCES = Short.MAX_VALUE - 1;
+
+  private final SAMSequenceDictionary dictionary;
+  private final ReadCoverage coverage;
+  private final int maxReadLength;
+  /** Reader of the header only BAM, which owns the index read back by htsjdk */
+  private SamReader indexReader;
+
+  /**
+   * @param maxReadLength longest read the index allows for, reads overlapping 
+   * a region are only found if they start at most this far before it
+   */
+  public GA4GHIndex(SAMSequenceDictionary dictionary, ReadCoverage coverage, 
+      int maxReadLength) {
+    if (dictionary.size() > MAX_REFERENCES) {
+      throw new SAMException("Unable to index " + dictionary.size() + 
+          " references, the GA4GH index supports at most " + MAX_REFERENCES);
+    }
+    this.dictionary = dictionary;
+    this.coverage = coverage;
+    this.maxReadLength = maxReadLength;
+  }
+
+  /** Returns the file pointer of a 1-based position of a reference */
+  public static long makeFilePointer(int referenceIndex, int position) {
+    return ((((long) referenceIndex + 1) << 32) | (position & 0xffffffffL)) << 16;
+  }
+
+  public static int getReferenceIndex(long filePointer) {
+    return (int) (filePointer >>> 48) - 1;
+  }
+
+  public static int getPosition(long filePointer) {
+    return (int) (filePointer >>> 16);
+  }
+
+  /**
+   * Returns the chunks of a span of this index, empty for a null span, 
+   * as the BAM index returns for references without coverage.
+   */
+  public static List<Chunk> getChunks(SAMFileSpan span) {
+    if (span == null) {
+      return Collections.emptyList();
+    }
+    if (span instanceof GA4GHFileSpan) {
+      return ((GA4GHFileSpan) span).getChunks();
+    }
+    // Spans of the BAM index are htsjdk BAMFileSpans, which only give
+    // their chunks to htsjdk itself.
+    final List<Chunk> chunks = new ArrayList<Chunk>();
+    try {
+      final Method getChunks = span.getClass().getDeclaredMethod("getChunks");
+      getChunks.setAccessible(true);
+      for (Object chunk : (List<?>) getChunks.invoke(span)) {
+        chunks.add((Chunk) chunk);
+      }
+    } catch (Exception ex) {
+      throw new SAMException("Not a span of a GA4GH index: " + span, ex);
+    }
+    return chunks;
+  }
+
+  /** Returns the index unmapped reads are at, after all references */
+  public int getUnmappedReferenceIndex() {
+    return dictionary.size();
+  }
+
+  /**
+   * Returns the file pointer of a read, that of its alignment start, or the 
+   * start of the unmapped reads if it has no position.
+   */
+  public long getFilePointer(SAMRecord record) {
+    final int referenceIndex = record.getReferenceIndex();
+    if (referenceIndex == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+      return makeFilePointer(getUnmappedReferenceIndex(), 0);
+    }
+    return makeFilePointer(referenceIndex, record.getAlignmentStart());
+  }
+
+  /** Returns true if a span holds the read at a file pointer */
+  public static boolean contains(List<Chunk> chunks, long filePointer) {
+    for (Chunk chunk : chunks) {
+      if (chunk.getChunkStart() <= filePointer && filePointer < chunk.getChunkEnd()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the BAM index, written and opened on first use.
+   */
+  public synchronized BrowseableBAMIndex getBrowseableIndex() {
+    if (indexReader == null) {
+      final SAMFileHeader header = new SAMFileHeader();
+      header.setSequenceDictionary(dictionary);
+      header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+      final ByteArrayOutputStream bam = new ByteArrayOutputStream();
+      new SAMFileWriterFactory().makeBAMWriter(header, true, bam).close();
+      indexReader = SamReaderFactory.makeDefault()
+          .enable(SamReaderFactory.Option.CACHE_FILE_BASED_INDEXES)
+          .open(SamInputResource
+              .of(new ByteArraySeekableStream(bam.toByteArray(), "ga4gh-header.bam"))
+              .index(new ByteArraySeekableStream(writeIndex(), "ga4gh-header.bam.bai")));
+    }
+    return indexReader.indexing().getBrowseableIndex();
+  }
+
+  /**
+   * Returns a span covering all reads, unmapped ones included.
+   */
+  public SAMFileSpan getFilePointerSpanningReads() {
+    final List<Chunk> chunks = new ArrayList<Chunk>();
+    for (int referenceIndex = 0; referenceIndex < dictionary.size(); referenceIndex++) {
+      final String referenceName = dictionary.getSequence(referenceIndex).getSequenceName();
+      final int rangeCount = coverage.getRangeCount(referenceName);
+      // Coverage ranges are 0-based and half-open.
+      for (int range = 0; range < rangeCount; range++) {
+        chunks.add(new Chunk(
+            makeFilePointer(referenceIndex, 
+                coverage.getRangeStart(referenceName, range) + 1),
+            makeFilePointer(referenceIndex, 
+                coverage.getRangeEnd(referenceName, range) + 1)));
+      }
+    }
+    chunks.add(new Chunk(makeFilePointer(getUnmappedReferenceIndex(), 0), 
+        makeFilePointer(getUnmappedReferenceIndex(), 1)));
+    return new GA4GHFileSpan(chunks);
+  }
+
+  /**
+   * Writes the index in the BAI format: per reference, the chunks of the 
+   * covered positions from the longest read length before each covered window
+   * to its end in the leaf bin of the window, then the linear index up to the
+   * last covered window.
+   */
+  private byte[] writeIndex() {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final BinaryCodec codec = new BinaryCodec(out);
+    codec.writeBytes(BAI_MAGIC);
+    codec.writeInt(dictionary.size());
+    final List<Chunk> binChunks = new ArrayList<Chunk>();
+    for (int referenceIndex = 0; referenceIndex < dictionary.size(); referenceIndex++) {
+      final String referenceName = dictionary.getSequence(referenceIndex).getSequenceName();
+      final int rangeCount = coverage.getRangeCount(referenceName);
+      final ByteArrayOutputStream bins = new ByteArrayOutputStream();
+      final BinaryCodec binCodec = new BinaryCodec(bins);
+      int binCount = 0;
+      int lastWindow = -1;
+      // First range that may end after the look back of the current window.
+      int firstRange = 0;
+      for (int range = 0; range < rangeCount; range++) {
+        // Coverage ranges are 0-based and half-open.
+        final int rangeStart = coverage.getRangeStart(referenceName, range) + 1;
+        final int rangeEnd = coverage.getRangeEnd(referenceName, range);
+        for (int w = Math.max(lastWindow + 1, (rangeStart - 1) >> WINDOW_SHIFT); 
+            w <= (rangeEnd - 1) >> WINDOW_SHIFT; w++) {
+          final int lookBack = getLookBack(w);
+          final int windowEnd = (w + 1) << WINDOW_SHIFT;
+          while (coverage.getRangeEnd(referenceName, firstRange) < lookBack) {
+            firstRange++;
+          }
+          for (int r = firstRange; r < rangeCount 
+              && coverage.getRangeStart(referenceName, r) < windowEnd; r++) {
+            binChunks.add(new Chunk(
+                makeFilePointer(referenceIndex, 
+                    Math.max(coverage.getRangeStart(referenceName, r) + 1, lookBack)),
+                makeFilePointer(referenceIndex, 
+                    Math.min(coverage.getRangeEnd(referenceName, r), windowEnd) + 1)));
+          }
+          binCount += writeBin(binCodec, w, binChunks);
+          lastWindow = w;
+        }
+      }
+      codec.writeInt(binCount);
+      codec.writeBytes(bins.toByteArray());
+      codec.writeInt(lastWindow + 1);
+      for (int w = 0; w <= lastWindow; w++) {
+        codec.writeLong(makeFilePointer(referenceIndex, getLookBack(w)));
+      }
+    }
+    codec.close();
+    return out.toByteArray();
+  }
+
+  /** Returns the first position reads overlapping a window may start at */
+  private int getLookBack(int window) {
+    return Math.max(1, (window << WINDOW_SHIFT) + 1 - maxReadLength);
+  }
+
+  /** Writes the leaf bin of a window with its chunks, if any, and clears them */
+  private static int writeBin(BinaryCodec codec, int window, List<Chunk> chunks) {
+    if (chunks.isEmpty()) {
+      return 0;
+    }
+    codec.writeInt(GenomicIndexUtil.LEVEL_STARTS[LEAF_LEVEL] + window);
+    codec.writeInt(chunks.size());
+    for (Chunk chunk : chunks) {
+      codec.writeLong(chunk.getChunkStart());
+      codec.writeLong(chunk.getChunkEnd());
+    }
+    chunks.clear();
+    return 1;
+  }
+
+  /** 
+   * Seekable stream over bytes in memory, for htsjdk to read them as a file.
+   * htsjdk only opens seekable streams whose source looks like a BAM file.
+   */
+  private static class ByteArraySeekableStream extends SeekableStream {
+    private final byte[] bytes;
+    private final String source;
+    private int position;
+
+    ByteArraySeekableStream(byte[] bytes, String source) {
+      this.bytes = bytes;
+      this.source = source;
+    }
+
+    @Override
+    public long length() {
+      return bytes.length;
+    }
+
+    @Override
+    public long position() {
+      return position;
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+      if (position < 0 || position > bytes.length) {
+        throw new IOException("Invalid position " + position + " in " + source);
+      }
+      this.position = (int) position;
+    }
+
+    @Override
+    public int read() {
+      return position < bytes.length ? bytes[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      if (position >= bytes.length) {
+        return length == 0 ? 0 : -1;
+      }
+      final int count = Math.min(length, bytes.length - position);
+      System.arraycopy(bytes, position, buffer, offset, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to release.
+    }
+
+    @Override
+    public boolean eof() {
+      return position >= bytes.length;
+    }
+
+    @Override
+    public String getSource() {
+      return source;
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import com.google.cloud.genomics.gatk.common.ReadCoverage;
+
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.BrowseableBAMIndex;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSpan;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+/**
+ * Indexing of a GA4GHSamReader, backed by a GA4GHIndex built from the
+ * coverage of the readset on first use.
+ * Spans of the index are iterated by querying the loci their chunks stand for
+ * and keeping the reads that start in them, so each read of the readset is in
+ * one span of a split like in a BAM.
+ */
+public class GA4GHIndexing<Read, ReadGroupSet, Reference> implements SamReader.Indexing {
+  private static final Logger LOG = Logger.getLogger(GA4GHIndexing.class.getName());
+
+  private final GA4GHSamReader<Read, ReadGroupSet, Reference> reader;
+  private GA4GHIndex index;
+
+  public GA4GHIndexing(GA4GHSamReader<Read, ReadGroupSet, Reference> reader) {
+    this.reader = reader;
+  }
+
+  @Override
+  public BAMIndex getIndex() {
+    return getBrowseableIndex();
+  }
+
+  @Override
+  public boolean hasBrowseableIndex() {
+    return true;
+  }
+
+  @Override
+  public BrowseableBAMIndex getBrowseableIndex() {
+    return getGA4GHIndex().getBrowseableIndex();
+  }
+
+  /** Returns the index, built from the coverage of the readset on first use */
+  private synchronized GA4GHIndex getGA4GHIndex() {
+    if (index == null) {
+      final ReadCoverage coverage;
+      try {
+        coverage = reader.dataSource.getCoverage(reader.session);
+      } catch (Exception ex) {
+        throw new SAMException("Failed to get the coverage of readset " + 
+            reader.session.getReadsetId(), ex);
+      }
+      index = new GA4GHIndex(getSequenceDictionary(), coverage, 
+          reader.settings.maxReadLength);
+      LOG.info("Built index of readset " + reader.session.getReadsetId() + 
+          " from coverage of " + coverage.getReferenceNames().size() + " references");
+    }
+    return index;
+  }
+
+  @Override
+  public SAMRecordIterator iterator(SAMFileSpan span) {
+    final List<Chunk> chunks = GA4GHIndex.getChunks(span);
+    final List<GA4GHQueryInterval> intervals = new ArrayList<GA4GHQueryInterval>();
+    for (Chunk chunk : chunks) {
+      addIntervals(intervals, chunk);
+    }
+    return new SpanIterator(getGA4GHIndex(), chunks, 
+        reader.query(intervals.toArray(new GA4GHQueryInterval[intervals.size()])));
+  }
+
+  @Override
+  public SAMFileSpan getFilePointerSpanningReads() {
+    return getGA4GHIndex().getFilePointerSpanningReads();
+  }
+
+  private SAMSequenceDictionary getSequenceDictionary() {
+    return reader.session.getSAMFileHeader().getSequenceDictionary();
+  }
+
+  /**
+   * Adds the intervals covering the loci of a chunk, which may span several
+   * references, up to and including the unmapped reads.
+   */
+  private void addIntervals(List<GA4GHQueryInterval> intervals, Chunk chunk) {
+    final SAMSequenceDictionary dictionary = getSequenceDictionary();
+    final int unmappedIndex = dictionary.size();
+    final long start = chunk.getChunkStart();
+    final long end = chunk.getChunkEnd();
+    final int firstReference = GA4GHIndex.getReferenceIndex(start);
+    final int lastReference = Math.min(unmappedIndex, GA4GHIndex.getReferenceIndex(end));
+    for (int referenceIndex = firstReference; referenceIndex <= lastReference; 
+        referenceIndex++) {
+      if (referenceIndex == unmappedIndex) {
+        intervals.add(new GA4GHQueryInterval("*", 0, 0,
+            GA4GHQueryInterval.ReadPositionConstraint.OVERLAPPING));
+        break;
+      }
+      final int intervalStart = referenceIndex == firstReference ? 
+          Math.max(1, GA4GHIndex.getPosition(start)) : 1;
+      // Chunk ends are exclusive, 0 asks for the rest of the reference.
+      final int intervalEnd = referenceIndex == lastReference ? 
+          GA4GHIndex.getPosition(end) - 1 : 0;
+      if (referenceIndex == lastReference && intervalEnd < intervalStart) {
+        continue;
+      }
+      intervals.add(new GA4GHQueryInterval(
+          dictionary.getSequence(referenceIndex).getSequenceName(), 
+          intervalStart, intervalEnd, 
+          GA4GHQueryInterval.ReadPositionConstraint.OVERLAPPING));
+    }
+  }
+
+  /**
+   * Returns the reads of a query that start in the chunks of a span, 
+   * dropping those overlapping the span from earlier chunks.
+   */
+  private static class SpanIterator implements SAMRecordIterator {
+    private final GA4GHIndex index;
+    private final List<Chunk> chunks;
+    private final SAMRecordIterator it;
+    private SAMRecord next;
+
+    SpanIterator(GA4GHIndex index, List<Chunk> chunks, SAMRecordIterator it) {
+      this.index = index;
+      this.chunks = chunks;
+      this.it = it;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && it.hasNext()) {
+        final SAMRecord record = it.next();
+        if (GA4GHIndex.contains(chunks, index.getFilePointer(record))) {
+          next = record;
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public SAMRecord next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final SAMRecord result = next;
+      next = null;
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      // Not implemented
+    }
+
+    @Override
+    public void close() {
+      it.close();
+    }
+
+    @Override
+    public SAMRecordIterator assertSorted(SAMFileHeader.SortOrder sortOrder) {
+      it.assertSorted(sortOrder);
+      return this;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.IntervalTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans the streams used to traverse a list of intervals: intervals are sorted
+ * in header order and those of a sequence that overlap or are at most a given
+ * gap apart are coalesced into a single OVERLAPPING stream, so long lists of
+ * small targets need far fewer queries.
+ * Streamed reads are matched back to the original intervals through an
+ * interval tree per sequence, and reads already returned by the previous
+ * stream of the sequence are skipped, so each read comes out once and in order.
+ */
+public class GA4GHIntervalPlan {
+  private final GA4GHQueryInterval[] streams;
+  /** Covered end of the previous stream of the same sequence, or -1 */
+  private final int[] previousEnds;
+  private final Map<String, IntervalTree<List<GA4GHQueryInterval>>> index;
+
+  private GA4GHIntervalPlan(GA4GHQueryInterval[] streams, int[] previousEnds,
+      Map<String, IntervalTree<List<GA4GHQueryInterval>>> index) {
+    this.streams = streams;
+    this.previousEnds = previousEnds;
+    this.index = index;
+  }
+
+  /**
+   * @param header orders the sequences, sequences not in it (or all of them if
+   *  it is null) come after the others in the order they first appear in.
+   * @param gap maximum number of bases between intervals streamed together.
+   */
+  public static GA4GHIntervalPlan plan(GA4GHQueryInterval[] intervals,
+      final SAMFileHeader header, int gap) {
+    final LinkedHashMap<String, List<GA4GHQueryInterval>> bySequence =
+        new LinkedHashMap<String, List<GA4GHQueryInterval>>();
+    for (GA4GHQueryInterval interval : intervals) {
+      List<GA4GHQueryInterval> sequenceIntervals = bySequence.get(interval.getSequence());
+      if (sequenceIntervals == null) {
+        sequenceIntervals = new ArrayList<GA4GHQueryInterval>();
+        bySequence.put(interval.getSequence(), sequenceIntervals);
+      }
+      sequenceIntervals.add(interval);
+    }
+    final List<String> sequences = new ArrayList<String>(bySequence.keySet());
+    // Stable, so unknown sequences keep their order.
+    Collections.sort(sequences, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return Integer.compare(getSequenceOrder(header, a), getSequenceOrder(header, b));
+      }
+    });
+
+    final List<GA4GHQueryInterval> streams = new ArrayList<GA4GHQueryInterval>();
+    final List<Integer> previousEnds = new ArrayList<Integer>();
+    final Map<String, IntervalTree<List<GA4GHQueryInterval>>> index =
+        new HashMap<String, IntervalTree<List<GA4GHQueryInterval>>>();
+    for (String sequence : sequences) {
+      final List<GA4GHQueryInterval> sequenceIntervals = bySequence.get(sequence);
+      Collections.sort(sequenceIntervals, new Comparator<GA4GHQueryInterval>() {
+        @Override
+        public int compare(GA4GHQueryInterval a, GA4GHQueryInterval b) {
+          return Integer.compare(a.getStart(), b.getStart());
+        }
+      });
+      final IntervalTree<List<GA4GHQueryInterval>> tree =
+          new IntervalTree<List<GA4GHQueryInterval>>();
+      int previousEnd = -1;
+      int streamStart = -1;
+      int streamEnd = -1;
+      for (GA4GHQueryInterval interval : sequenceIntervals) {
+        final int start = interval.getStart();
+        final int end = getCoveredEnd(interval);
+        final IntervalTree.Node<List<GA4GHQueryInterval>> node = tree.find(start, end);
+        if (node != null) {
+          node.getValue().add(interval);
+        } else {
+          final List<GA4GHQueryInterval> sameRange = new ArrayList<GA4GHQueryInterval>(1);
+          sameRange.add(interval);
+          tree.put(start, end, sameRange);
+        }
+
+        if (streamStart >= 0 && (long) start <= (long) streamEnd + gap + 1) {
+          streamEnd = Math.max(streamEnd, end);
+          continue;
+        }
+        if (streamStart >= 0) {
+          addStream(streams, previousEnds, sequence, streamStart, streamEnd, previousEnd);
+          previousEnd = streamEnd;
+        }
+        streamStart = start;
+        streamEnd = end;
+      }
+      addStream(streams, previousEnds, sequence, streamStart, streamEnd, previousEnd);
+      index.put(sequence, tree);
+    }
+
+    final int[] ends = new int[previousEnds.size()];
+    for (int i = 0; i < ends.length; i++) {
+      ends[i] = previousEnds.get(i);
+    }
+    return new GA4GHIntervalPlan(streams.toArray(new GA4GHQueryInterval[streams.size()]),
+        ends, index);
+  }
+
+  private static int getSequenceOrder(SAMFileHeader header, String sequence) {
+    final int index = header == null ? -1 : header.getSequenceIndex(sequence);
+    return index < 0 ? Integer.MAX_VALUE : index;
+  }
+
+  /** Returns the last position a read matching the interval can start at */
+  private static int getCoveredEnd(GA4GHQueryInterval interval) {
+    if (interval.getReadPositionConstraint() ==
+        GA4GHQueryInterval.ReadPositionConstraint.START_AT) {
+      return interval.getStart();
+    }
+    return interval.getEnd() == 0 ? Integer.MAX_VALUE :
+      Math.max(interval.getStart(), interval.getEnd());
+  }
+
+  private static void addStream(List<GA4GHQueryInterval> streams,
+      List<Integer> previousEnds, String sequence, int start, int end, int previousEnd) {
+    streams.add(new GA4GHQueryInterval(sequence, start,
+        end == Integer.MAX_VALUE ? 0 : end,
+        GA4GHQueryInterval.ReadPositionConstraint.OVERLAPPING));
+    previousEnds.add(previousEnd);
+  }
+
+  /** Returns the intervals to query, in traversal order */
+  public GA4GHQueryInterval[] getStreams() {
+    return streams;
+  }
+
+  public int size() {
+    return streams.length;
+  }
+
+  /**
+   * Returns true if a read returned by the given stream matches one of the
+   * original intervals and was not returned by the previous stream.
+   */
+  public boolean matches(int stream, SAMRecord record) {
+    final int start = record.getAlignmentStart();
+    if (start <= previousEnds[stream]) {
+      return false;
+    }
+    final IntervalTree<List<GA4GHQueryInterval>> tree = index.get(streams[stream].getSequence());
+    final Iterator<IntervalTree.Node<List<GA4GHQueryInterval>>> overlappers =
+        tree.overlappers(start, Math.max(start, record.getAlignmentEnd()));
+    while (overlappers.hasNext()) {
+      for (GA4GHQueryInterval interval : overlappers.next().getValue()) {
+        if (interval.matches(record)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** 
+   * Returns true if no read after this one in the given stream can match. 
+   */
+  public boolean isPast(int stream, SAMRecord record) {
+    return streams[stream].isPast(record);
+  }
+}
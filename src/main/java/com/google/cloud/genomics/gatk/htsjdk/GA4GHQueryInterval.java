@@ -76,6 +76,49 @@ public class GA4GHQueryInterval {
     this.readPositionConstraint = readPositionConstraint;
   }
   
+  /**
+   * Returns the start of the range to request from the API.
+   * Interval positions are 1-based, while the API ranges are 0-based.
+   */
+  public int getQueryStart() {
+    return Math.max(0, start - 1);
+  }
+  
+  /**
+   * Returns the end of the range to request from the API, 0 for the end of 
+   * the sequence. START_AT asks for a single position instead of the rest 
+   * of the sequence.
+   */
+  public int getQueryEnd() {
+    if (readPositionConstraint == ReadPositionConstraint.START_AT) {
+      return start;
+    }
+    return end;
+  }
+  
+  @Override
+  public String toString() {
+    return sequence + ":" + start + "-" + end + " " + readPositionConstraint;
+  }
+  
+  /**
+   * Returns true if no read after this one can match the interval, 
+   * given that reads of the sequence come sorted by alignment start.
+   */
+  public boolean isPast(SAMRecord record) {
+    if (!sequence.equals(record.getReferenceName())) {
+      return false;
+    }
+    switch (readPositionConstraint) {
+      case OVERLAPPING:
+      case CONTAINED:
+        return end != 0 && record.getAlignmentStart() > end;
+      case START_AT:
+        return record.getAlignmentStart() > start;
+    }
+    return false;
+  }
+  
   /** 
    * Returns true iff the read specified by the record matches the interval
    * given the interval's constraints and the read position.
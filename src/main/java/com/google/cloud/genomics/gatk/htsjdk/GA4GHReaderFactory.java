@@ -30,6 +30,15 @@ import java.util.logging.Logger;
 public class GA4GHReaderFactory implements CustomReaderFactory.ICustomReaderFactory {
   private static final Logger LOG = Logger.getLogger(GA4GHReaderFactory.class.getName());
   
+  /**
+   * Shared by all readers, so that readers of the same root url, e.g. one per
+   * thread of a multi-threaded traversal, share channels, credentials and caches.
+   */
+  private static final GenomicsDataSourceFactoryGrpc FACTORY_GRPC = 
+      new GenomicsDataSourceFactoryGrpc();
+  private static final GenomicsDataSourceFactoryRest FACTORY_REST = 
+      new GenomicsDataSourceFactoryRest();
+  
   @Override
   public SamReader open(URL url) {
     try {
@@ -38,15 +47,13 @@ public class GA4GHReaderFactory implements CustomReaderFactory.ICustomReaderFact
         return new GA4GHSamReader<
             com.google.genomics.v1.Read,
             com.google.genomics.v1.ReadGroupSet, 
-            com.google.genomics.v1.Reference>(url,
-                new GenomicsDataSourceFactoryGrpc());
+            com.google.genomics.v1.Reference>(url, FACTORY_GRPC);
       } else {
         LOG.info("Creating SamReader using Genomics API inteface");
         return new GA4GHSamReader<
             com.google.api.services.genomics.model.Read,
             com.google.api.services.genomics.model.ReadGroupSet, 
-            com.google.api.services.genomics.model.Reference>(url,
-                new GenomicsDataSourceFactoryRest());
+            com.google.api.services.genomics.model.Reference>(url, FACTORY_REST);
       }
     } catch (RuntimeException rex) {
       throw rex;
@@ -18,6 +18,8 @@ package com.google.cloud.genomics.gatk.htsjdk;
 import com.google.cloud.genomics.gatk.common.GA4GHUrl;
 import com.google.cloud.genomics.gatk.common.GenomicsDataSource;
 import com.google.cloud.genomics.gatk.common.GenomicsDataSourceFactory;
+import com.google.cloud.genomics.gatk.common.ReadGroupSetSession;
+import com.google.cloud.genomics.gatk.common.ReadProjection;
 
 import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
@@ -25,12 +27,21 @@ import htsjdk.samtools.SAMFormatException;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
-import htsjdk.samtools.util.CloseableIterator;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
 /**
@@ -41,12 +52,24 @@ public class GA4GHSamReader<Read, ReadGroupSet, Reference> implements SamReader
   private static final Logger LOG = Logger.getLogger(GA4GHSamReader.class.getName());
   private GA4GHUrl url;
   private GenomicsDataSourceFactory<Read, ReadGroupSet, Reference> factory;
+  /** Reference to the data source shared with other readers of the root url */
+  private GenomicsDataSourceFactory<Read, ReadGroupSet, Reference>.Handle dataSourceHandle;
   GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource;
+  ReadGroupSetSession<Read, ReadGroupSet, Reference> session;
   GA4GHSamRecordIterator<Read, ReadGroupSet, Reference> iterator;
+  /** Iterator of the last query, caching the paired reads it returns */
+  private SAMRecordIterator cachingIterator;
+  GenomicsDataSourceFactory.Settings settings;
+  private MateCache mateCache;
+  private GA4GHIndexing<Read, ReadGroupSet, Reference> indexing;
+  /** Counts the queries and mate windows streamed into the mate cache */
+  private long cacheGeneration;
   
   /**
    * Creates the reader passing the url defining the desired reading region
    * and a dataSourceFactory (API or GRPC).
+   * Readers created by the same factory with the same root url and settings
+   * share one data source, which is closed with the last of them.
    * @throws IOException 
    * @throws GeneralSecurityException
    */
@@ -55,28 +78,104 @@ public class GA4GHSamReader<Read, ReadGroupSet, Reference> implements SamReader
           throws URISyntaxException, IOException, GeneralSecurityException {
     this.url = new GA4GHUrl(url);
     this.factory = dataSourceFactory;
-    factory.configure(this.url.getRootUrl(), 
-        new GenomicsDataSourceFactory.Settings(
-            System.getProperty("ga4gh.client_secrets", "client_secrets.json"),
-            System.getProperty("ga4gh.api_key", ""),
-            System.getProperty("ga4gh.no_local_server","")
-              .toLowerCase().equals("true")));
+    settings = makeSettings();
+    mateCache = new MateCache(settings.mateCacheSize);
+    dataSourceHandle = factory.acquire(this.url.getRootUrl(), settings);
     try {
-      dataSource = factory.get(this.url.getRootUrl());
+      dataSource = dataSourceHandle.getDataSource();
+      session = dataSource.openSession(this.url.getReadset());
       queryOverlapping(this.url.getSequence(), this.url.getRangeStart(), 
           this.url.getRangeEnd());
     } catch (Exception ex) {
       LOG.warning("Error initializing GA4GHSamReader:\n" + ex + "\n");
+      dataSourceHandle.close();
       throw ex;
     }
   }
   
+  /**
+   * Reads data source settings from ga4gh.* system properties.
+   */
+  static GenomicsDataSourceFactory.Settings makeSettings() {
+    GenomicsDataSourceFactory.Settings settings = new GenomicsDataSourceFactory.Settings(
+        System.getProperty("ga4gh.client_secrets", "client_secrets.json"),
+        System.getProperty("ga4gh.api_key", ""),
+        System.getProperty("ga4gh.no_local_server","")
+          .toLowerCase().equals("true"));
+    settings.streamShards = Integer.getInteger("ga4gh.stream_shards", 
+        settings.streamShards);
+    settings.grpcChannels = Integer.getInteger("ga4gh.grpc_channels", 
+        settings.grpcChannels);
+    settings.leastLoadedChannels = Boolean.getBoolean("ga4gh.least_loaded_channels");
+    settings.streamWindowBytes = Integer.getInteger("ga4gh.stream_window_bytes", 
+        settings.streamWindowBytes);
+    settings.connectionWindowBytes = Integer.getInteger("ga4gh.connection_window_bytes", 
+        settings.connectionWindowBytes);
+    settings.streamRetries = Integer.getInteger("ga4gh.stream_retries", 
+        settings.streamRetries);
+    settings.retryInitialBackoffMillis = Long.getLong("ga4gh.retry_initial_backoff_millis", 
+        settings.retryInitialBackoffMillis);
+    settings.retryMaxBackoffMillis = Long.getLong("ga4gh.retry_max_backoff_millis", 
+        settings.retryMaxBackoffMillis);
+    settings.readAheadReads = Integer.getInteger("ga4gh.read_ahead_reads", 
+        settings.readAheadReads);
+    settings.readAheadBytes = Long.getLong("ga4gh.read_ahead_bytes", 
+        settings.readAheadBytes);
+    settings.conversionThreads = Integer.getInteger("ga4gh.conversion_threads", 
+        settings.conversionThreads);
+    settings.lazySAMRecords = Boolean.getBoolean("ga4gh.lazy_sam_records");
+    final String readProjection = System.getProperty("ga4gh.read_projection");
+    if (readProjection != null) {
+      settings.readProjection = ReadProjection.fromString(readProjection);
+    }
+    settings.referenceCacheDir = System.getProperty("ga4gh.reference_cache_dir", 
+        settings.referenceCacheDir);
+    settings.offHeapUnmappedMates = Boolean.getBoolean("ga4gh.off_heap_unmapped_mates");
+    settings.unmappedMatesMemoryBytes = Long.getLong("ga4gh.unmapped_mates_memory_bytes", 
+        settings.unmappedMatesMemoryBytes);
+    settings.expectedUnmappedMates = Long.getLong("ga4gh.expected_unmapped_mates", 
+        settings.expectedUnmappedMates);
+    settings.unmappedMatesSidecarDir = System.getProperty(
+        "ga4gh.unmapped_mates_sidecar_dir", settings.unmappedMatesSidecarDir);
+    settings.spillDir = System.getProperty("ga4gh.spill_dir", settings.spillDir);
+    settings.concurrentUnmappedScan = !System.getProperty(
+        "ga4gh.concurrent_unmapped_scan", "true").toLowerCase().equals("false");
+    settings.unmappedMatesGroupedByReference = Boolean.getBoolean(
+        "ga4gh.unmapped_mates_grouped_by_reference");
+    settings.coverageBucketWidth = Integer.getInteger("ga4gh.coverage_bucket_width", 
+        settings.coverageBucketWidth);
+    settings.coverageCacheDir = System.getProperty("ga4gh.coverage_cache_dir", 
+        settings.coverageCacheDir);
+    settings.maxReadLength = Integer.getInteger("ga4gh.max_read_length", 
+        settings.maxReadLength);
+    settings.intervalMergeGap = Integer.getInteger("ga4gh.interval_merge_gap", 
+        settings.intervalMergeGap);
+    settings.prefetchIntervals = Integer.getInteger("ga4gh.prefetch_intervals", 
+        settings.prefetchIntervals);
+    settings.prefetchBytes = Long.getLong("ga4gh.prefetch_bytes", 
+        settings.prefetchBytes);
+    settings.mateCacheSize = Integer.getInteger("ga4gh.mate_cache_size", 
+        settings.mateCacheSize);
+    settings.mateWindow = Integer.getInteger("ga4gh.mate_window", 
+        settings.mateWindow);
+    return settings;
+  }
+  
+  /**
+   * Stops the current query and releases the data source, which is closed
+   * only if no other reader shares it.
+   */
   @Override
   public void close() throws IOException {
-    if ( this.dataSource != null) {
-      this.dataSource.close();
+    if (this.iterator != null) {
+      this.iterator.close();
     }
+    if (this.dataSourceHandle != null) {
+      this.dataSourceHandle.close();
+    }
+    this.dataSourceHandle = null;
     this.dataSource = null;
+    this.session = null;
     this.factory = null;
   }
 
@@ -85,20 +184,33 @@ public class GA4GHSamReader<Read, ReadGroupSet, Reference> implements SamReader
     return iterator.getFileHeader();
   }
 
+  /**
+   * Reads are served in coordinate order with an index, like an indexed BAM.
+   */
   @Override
   public Type type() {
-    // TODO(iliat): figure out bearing of this on indexing
-    return Type.SAM_TYPE;
+    return Type.BAM_TYPE;
   }
 
+  /**
+   * Readsets with more references than index file pointers can encode have
+   * no index.
+   */
   @Override
   public boolean hasIndex() {
-    return true;
+    return session.getSAMFileHeader().getSequenceDictionary().size()
+        <= GA4GHIndex.MAX_REFERENCES;
   }
 
+  /**
+   * Returns an index built from the coverage of the readset when first used.
+   */
   @Override
-  public Indexing indexing() {
-    return null;
+  public synchronized Indexing indexing() {
+    if (indexing == null) {
+      indexing = new GA4GHIndexing<Read, ReadGroupSet, Reference>(this);
+    }
+    return indexing;
   }
   
   @Override
@@ -158,8 +270,61 @@ public class GA4GHSamReader<Read, ReadGroupSet, Reference> implements SamReader
               GA4GHQueryInterval.ReadPositionConstraint.START_AT)});
   }
 
+  /**
+   * Returns the mate of a paired read, from the mate cache if it was streamed
+   * recently by a query or a mate window, otherwise by streaming a window 
+   * from the mate position.
+   */
   @Override
   public SAMRecord queryMate(SAMRecord rec) {
+    return queryMates(Collections.singletonList(rec)).get(rec);
+  }
+
+  /**
+   * Finds the mates of many paired reads at once.
+   * Mates in the cache are returned directly. The rest are grouped into windows
+   * around their positions, which are streamed by a single iterator, and mates
+   * without a position are found with one scan of the unmapped reads.
+   * @return the mate of each passed record, keyed by record identity,
+   *  null for records whose mate was not found.
+   */
+  public Map<SAMRecord, SAMRecord> queryMates(Collection<SAMRecord> records) {
+    final Map<SAMRecord, SAMRecord> mates = new IdentityHashMap<SAMRecord, SAMRecord>();
+    final Map<String, List<SAMRecord>> pending = new HashMap<String, List<SAMRecord>>();
+    final Map<String, List<SAMRecord>> unplaced = new HashMap<String, List<SAMRecord>>();
+    final Map<String, List<Integer>> mateStarts = new HashMap<String, List<Integer>>();
+    final Set<String> pendingNames = new HashSet<String>();
+    for (SAMRecord rec : records) {
+      checkMateQuery(rec);
+      mates.put(rec, null);
+      if (rec.getMateReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+        addTo(unplaced, rec.getReadName(), rec);
+        continue;
+      }
+      final String mateKey = MateCache.getMateKey(rec);
+      final List<SAMRecord> cached = mateCache.get(mateKey);
+      if (cached != null) {
+        mates.put(rec, getSingleMate(rec, cached));
+        continue;
+      }
+      addTo(pending, mateKey, rec);
+      addTo(mateStarts, rec.getMateReferenceName(), rec.getMateAlignmentStart());
+      pendingNames.add(rec.getReadName());
+    }
+    if (!pending.isEmpty()) {
+      final Map<String, TreeMap<Integer, Integer>> windows = makeMateWindows(mateStarts);
+      streamMateWindows(windows, pending, pendingNames, mates);
+    }
+    if (!unplaced.isEmpty()) {
+      scanUnplacedMates(unplaced, mates);
+    }
+    LOG.fine("Resolved " + mates.size() + " mates, mate cache holds " + 
+        mateCache.size() + " reads, " + mateCache.getHits() + " hits, " + 
+        mateCache.getMisses() + " misses");
+    return mates;
+  }
+  
+  private static void checkMateQuery(SAMRecord rec) {
     if (!rec.getReadPairedFlag()) {
       throw new IllegalArgumentException("queryMate called for unpaired read.");
     }
@@ -167,57 +332,220 @@ public class GA4GHSamReader<Read, ReadGroupSet, Reference> implements SamReader
         throw new IllegalArgumentException(
             "SAMRecord must be either first and second of pair, but not both.");
     }
-    final boolean firstOfPair = rec.getFirstOfPairFlag();
-    final CloseableIterator<SAMRecord> it;
-    if (rec.getMateReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-        it = queryUnmapped();
-    } else {
-        it = queryAlignmentStart(rec.getMateReferenceName(), rec.getMateAlignmentStart());
+  }
+  
+  private static <K, V> void addTo(Map<K, List<V>> map, K key, V value) {
+    List<V> values = map.get(key);
+    if (values == null) {
+      values = new ArrayList<V>(1);
+      map.put(key, values);
+    }
+    values.add(value);
+  }
+  
+  /** Returns true if next is the other end of the fragment of rec */
+  private static boolean isMateEnd(SAMRecord rec, SAMRecord next) {
+    return rec.getFirstOfPairFlag() ? !next.getFirstOfPairFlag() : 
+      !next.getSecondOfPairFlag();
+  }
+  
+  private static SAMRecord getSingleMate(SAMRecord rec, List<SAMRecord> candidates) {
+    if (candidates.size() > 1) {
+      throw multipleMates(rec);
     }
+    return candidates.get(0);
+  }
+  
+  private static SAMFormatException multipleMates(SAMRecord rec) {
+    return new SAMFormatException(
+        "Multiple SAMRecord with read name " + rec.getReadName() +
+            " for " + (rec.getFirstOfPairFlag() ? "second" : "first") + " end.");
+  }
+  
+  /**
+   * Merges the mate positions of each reference into windows of at least 
+   * mateWindow bases, joining windows less than mateWindow bases apart.
+   * @return window start to window end, both inclusive, per reference.
+   */
+  private Map<String, TreeMap<Integer, Integer>> makeMateWindows(
+      Map<String, List<Integer>> mateStarts) {
+    final int size = Math.max(1, settings.mateWindow);
+    final Map<String, TreeMap<Integer, Integer>> windows = 
+        new HashMap<String, TreeMap<Integer, Integer>>();
+    for (Map.Entry<String, List<Integer>> entry : mateStarts.entrySet()) {
+      final List<Integer> starts = entry.getValue();
+      Collections.sort(starts);
+      final TreeMap<Integer, Integer> referenceWindows = new TreeMap<Integer, Integer>();
+      int windowStart = -1;
+      int windowEnd = -1;
+      for (int start : starts) {
+        if (windowStart < 0 || start > windowEnd + size) {
+          if (windowStart >= 0) {
+            referenceWindows.put(windowStart, windowEnd);
+          }
+          windowStart = start;
+        }
+        windowEnd = start + size - 1;
+      }
+      referenceWindows.put(windowStart, windowEnd);
+      windows.put(entry.getKey(), referenceWindows);
+    }
+    return windows;
+  }
+  
+  /**
+   * Streams the windows, caching the paired reads that start in them, and
+   * resolves the pending mate queries from the streamed reads.
+   */
+  private void streamMateWindows(Map<String, TreeMap<Integer, Integer>> windows,
+      Map<String, List<SAMRecord>> pending, Set<String> pendingNames,
+      Map<SAMRecord, SAMRecord> mates) {
+    final List<GA4GHQueryInterval> intervals = new ArrayList<GA4GHQueryInterval>();
+    for (Map.Entry<String, TreeMap<Integer, Integer>> entry : windows.entrySet()) {
+      for (Map.Entry<Integer, Integer> window : entry.getValue().entrySet()) {
+        intervals.add(new GA4GHQueryInterval(entry.getKey(), window.getKey(), 
+            window.getValue(), GA4GHQueryInterval.ReadPositionConstraint.OVERLAPPING));
+      }
+    }
+    LOG.fine("Streaming " + intervals.size() + " windows for " + 
+        pending.size() + " mates");
+    final long generation = ++cacheGeneration;
+    final Map<String, List<SAMRecord>> found = new HashMap<String, List<SAMRecord>>();
+    final GA4GHSamRecordIterator<Read, ReadGroupSet, Reference> it = 
+        new GA4GHSamRecordIterator<Read, ReadGroupSet, Reference>(dataSource, session, 
+            intervals.toArray(new GA4GHQueryInterval[intervals.size()]));
+    try {
+      while (it.hasNext()) {
+        final SAMRecord next = it.next();
+        if (!next.getReadPairedFlag()) {
+          if (pendingNames.contains(next.getReadName())) {
+            throw new SAMFormatException(
+                "Paired and unpaired reads with same name: " + next.getReadName());
+          }
+          continue;
+        }
+        // Reads overlapping two windows come from both, keep them only for
+        // the window they start in.
+        final TreeMap<Integer, Integer> referenceWindows = 
+            windows.get(next.getReferenceName());
+        final Map.Entry<Integer, Integer> window = referenceWindows == null ? null :
+            referenceWindows.floorEntry(next.getAlignmentStart());
+        if (window == null || next.getAlignmentStart() > window.getValue()) {
+          continue;
+        }
+        mateCache.add(next, generation);
+        final String key = MateCache.getKey(next);
+        if (pending.containsKey(key)) {
+          addTo(found, key, next);
+        }
+      }
+    } finally {
+      it.close();
+    }
+    for (Map.Entry<String, List<SAMRecord>> entry : pending.entrySet()) {
+      final List<SAMRecord> candidates = found.get(entry.getKey());
+      if (candidates == null) {
+        continue;
+      }
+      for (SAMRecord rec : entry.getValue()) {
+        mates.put(rec, getSingleMate(rec, candidates));
+      }
+    }
+  }
+  
+  /**
+   * Finds mates without a position with a single scan of the unmapped reads.
+   */
+  private void scanUnplacedMates(Map<String, List<SAMRecord>> unplaced,
+      Map<SAMRecord, SAMRecord> mates) {
+    LOG.fine("Scanning unmapped reads for " + unplaced.size() + " mates");
+    final GA4GHSamRecordIterator<Read, ReadGroupSet, Reference> it = 
+        new GA4GHSamRecordIterator<Read, ReadGroupSet, Reference>(dataSource, session, 
+            new GA4GHQueryInterval[] { new GA4GHQueryInterval("*", 0, 0, 
+                GA4GHQueryInterval.ReadPositionConstraint.OVERLAPPING) });
     try {
-        SAMRecord mateRec = null;
-        while (it.hasNext()) {
-            final SAMRecord next = it.next();
-            if (!next.getReadPairedFlag()) {
-                if (rec.getReadName().equals(next.getReadName())) {
-                    throw new SAMFormatException(
-                        "Paired and unpaired reads with same name: " + rec.getReadName());
-                }
-                continue;
-            }
-            if (firstOfPair) {
-                if (next.getFirstOfPairFlag()) {
-                  continue;
-                }
-            } else {
-                if (next.getSecondOfPairFlag()) {
-                  continue;
-                }
-            }
-            if (rec.getReadName().equals(next.getReadName())) {
-                if (mateRec != null) {
-                    throw new SAMFormatException(
-                        "Multiple SAMRecord with read name " + rec.getReadName() +
-                            " for " + (firstOfPair ? "second" : "first") + " end.");
-                }
-                mateRec = next;
-            }
+      while (it.hasNext()) {
+        final SAMRecord next = it.next();
+        final List<SAMRecord> requests = unplaced.get(next.getReadName());
+        if (requests == null) {
+          continue;
         }
-        return mateRec;
+        if (!next.getReadPairedFlag()) {
+          throw new SAMFormatException(
+              "Paired and unpaired reads with same name: " + next.getReadName());
+        }
+        for (SAMRecord rec : requests) {
+          if (!isMateEnd(rec, next)) {
+            continue;
+          }
+          if (mates.get(rec) != null) {
+            throw multipleMates(rec);
+          }
+          mates.put(rec, next);
+        }
+      }
     } finally {
-        it.close();
+      it.close();
     }
   }
   
   public SAMRecordIterator query(GA4GHQueryInterval[] intervals) {
     iterator = new GA4GHSamRecordIterator<Read, ReadGroupSet, Reference>(
-        dataSource, url.getReadset(), intervals);
+        dataSource, session, intervals, settings);
+    cachingIterator = settings.mateCacheSize > 0 ? 
+        new MateCachingIterator(iterator, ++cacheGeneration) : iterator;
     return iterator();
   }
   
   @Override
   public SAMRecordIterator iterator() {
-    return iterator;
+    return cachingIterator;
+  }
+  
+  /**
+   * Adds the paired reads returned by a query to the mate cache, so mates of 
+   * reads streamed together are found without going back to the API.
+   * The plan of the query returns each read once, so all of them are cached 
+   * under the generation of the query.
+   */
+  private class MateCachingIterator implements SAMRecordIterator {
+    private final SAMRecordIterator it;
+    private final long generation;
+    
+    MateCachingIterator(SAMRecordIterator it, long generation) {
+      this.it = it;
+      this.generation = generation;
+    }
+    
+    @Override
+    public boolean hasNext() {
+      return it.hasNext();
+    }
+    
+    @Override
+    public SAMRecord next() {
+      final SAMRecord next = it.next();
+      if (next != null && next.getReadPairedFlag()) {
+        mateCache.add(next, generation);
+      }
+      return next;
+    }
+    
+    @Override
+    public void remove() {
+      it.remove();
+    }
+    
+    @Override
+    public void close() {
+      it.close();
+    }
+    
+    @Override
+    public SAMRecordIterator assertSorted(SAMFileHeader.SortOrder sortOrder) {
+      it.assertSorted(sortOrder);
+      return this;
+    }
   }
 
   @Override
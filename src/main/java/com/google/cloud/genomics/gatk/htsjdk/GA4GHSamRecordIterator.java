@@ -16,15 +16,28 @@ limitations under the License.
 package com.google.cloud.genomics.gatk.htsjdk;
 
 import com.google.cloud.genomics.gatk.common.GenomicsDataSource;
+import com.google.cloud.genomics.gatk.common.GenomicsDataSourceFactory;
+import com.google.cloud.genomics.gatk.common.ReadAheadIterable;
+import com.google.cloud.genomics.gatk.common.ReadGroupSetSession;
 import com.google.cloud.genomics.gatk.common.ReadIteratorResource;
 import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import htsjdk.samtools.SAMException;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.logging.Logger;
 
@@ -36,6 +49,8 @@ import java.util.logging.Logger;
  * Since the API always return *overlapping* reads and SAMRecordIterator
  * supports contained and start-at queries, this class filters reads
  * returned from the API to make sure they conform to the requested intervals.
+ * close() may be called from another thread to abandon the iteration: the 
+ * queries in flight are cancelled and the consumer sees the end of the records.
  */
 public class GA4GHSamRecordIterator<Read, ReadGroupSet, Reference> 
     implements SAMRecordIterator{
@@ -43,10 +58,22 @@ public class GA4GHSamRecordIterator<Read, ReadGroupSet, Reference>
 
   private static final long STATS_DUMP_INTERVAL_READS = 100000;
   
-  Iterator<SAMRecord> iterator;
-  GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource;
-  GA4GHQueryInterval[] intervals;
+  volatile Iterator<SAMRecord> iterator;
+  ReadIteratorResource<Read, ReadGroupSet, Reference> resource;
+  volatile GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource;
+  volatile GA4GHQueryInterval[] intervals;
+  volatile boolean closed;
+  GA4GHIntervalPlan plan;
+  int mergeGap;
+  int prefetchIntervals;
+  long prefetchBytes;
+  /** Streams opened ahead of their turn, in stream order */
+  ArrayDeque<Prefetch> prefetches;
+  /** The prefetched stream being consumed, if prefetching */
+  Prefetch currentPrefetch;
+  ExecutorService prefetchExecutor;
   String readSetId;
+  ReadGroupSetSession<Read, ReadGroupSet, Reference> session;
   int intervalIndex = -1;
   boolean hasNext;
   SAMRecord nextRead;
@@ -64,45 +91,277 @@ public class GA4GHSamRecordIterator<Read, ReadGroupSet, Reference>
     seekMatchingRead();
   }
   
+  /**
+   * Makes an iterator that reuses the readset metadata of the session for 
+   * all intervals.
+   */
+  public GA4GHSamRecordIterator(GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource,
+      ReadGroupSetSession<Read, ReadGroupSet, Reference> session,
+      GA4GHQueryInterval[] intervals) {
+    this(dataSource, session, intervals, 0, 0, 0);
+  }
+  
+  /**
+   * Makes an iterator that reuses the readset metadata of the session and
+   * takes interval merging and prefetching from the settings.
+   */
+  public GA4GHSamRecordIterator(GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource,
+      ReadGroupSetSession<Read, ReadGroupSet, Reference> session,
+      GA4GHQueryInterval[] intervals, GenomicsDataSourceFactory.Settings settings) {
+    this(dataSource, session, intervals, settings.intervalMergeGap, 
+        settings.prefetchIntervals, settings.prefetchBytes);
+  }
+  
+  private GA4GHSamRecordIterator(GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource,
+      ReadGroupSetSession<Read, ReadGroupSet, Reference> session,
+      GA4GHQueryInterval[] intervals, int mergeGap, int prefetchIntervals, 
+      long prefetchBytes) {
+    this.dataSource = dataSource;
+    this.session = session;
+    this.readSetId = session.getReadsetId();
+    this.intervals = intervals;
+    this.mergeGap = mergeGap;
+    this.prefetchIntervals = prefetchIntervals;
+    this.prefetchBytes = prefetchBytes;
+    this.timer = Stopwatch.createUnstarted();
+    seekMatchingRead();
+  }
+  
   /** Returns true when we truly reached the end of all requested data */
   boolean isAtEnd() {
-    return intervals == null || intervals.length == 0 ||  
-        intervalIndex >= intervals.length;
+    final GA4GHQueryInterval[] intervals = this.intervals;
+    return closed || intervals == null || intervals.length == 0 ||  
+        (plan != null && intervalIndex >= plan.size());
   }
   
-  /** Returns the current interval being processed or null if we have reached the end */
+  /** 
+   * Returns the current stream being processed, covering one or more of the 
+   * requested intervals, or null if we have reached the end.
+   */
   GA4GHQueryInterval currentInterval() {
-    if (isAtEnd()) {
+    if (isAtEnd() || plan == null) {
       return null;
     }
-    return intervals[intervalIndex];
+    return plan.getStreams()[intervalIndex];
   }
   
-  /** Re-queries the API for the next interval */
+  /**
+   * Sorts and coalesces the requested intervals into the streams to query,
+   * in the reference order of the header when it is available.
+   */
+  void planIntervals() {
+    SAMFileHeader sequenceOrder = null;
+    try {
+      if (session == null) {
+        session = dataSource.openSession(readSetId);
+      }
+      sequenceOrder = session.getSAMFileHeader();
+    } catch (Exception ex) {
+      LOG.warning("Error getting the header for planning intervals " + ex.toString());
+    }
+    plan = GA4GHIntervalPlan.plan(intervals, sequenceOrder, mergeGap);
+    LOG.info("Streaming " + intervals.length + " intervals in " + plan.size() + 
+        " queries");
+  }
+  
+  /** 
+   * Re-queries the API for the next interval and makes it the current resource.
+   * Waiting for the query is done without holding the lock, so close can 
+   * cancel it from another thread.
+   */
   ReadIteratorResource<Read, ReadGroupSet, Reference> queryNextInterval() {
     Stopwatch w = Stopwatch.createStarted();
-    if (!isAtEnd()) {
-      intervalIndex++;
+    final Prefetch prefetch;
+    final GA4GHQueryInterval interval;
+    synchronized (this) {
+      closeResource();
+      if (!isAtEnd()) {
+        intervalIndex++;
+      }
+      if (isAtEnd()) {
+        stopPrefetching();
+        return null;
+      }
+      interval = currentInterval();
+      if (prefetchIntervals > 0) {
+        schedulePrefetches();
+        currentPrefetch = prefetches.pollFirst();
+      }
+      prefetch = currentPrefetch;
     }
-    if (isAtEnd()) {
-      return null;
+    ReadIteratorResource<Read, ReadGroupSet, Reference> result;
+    if (prefetch != null) {
+      result = prefetch.await();
+    } else {
+      result = queryForInterval(interval);
+    }
+    synchronized (this) {
+      if (closed) {
+        // Closed while the query was made, the prefetch is already cancelled.
+        if (prefetch == null && result != null) {
+          result.close();
+        }
+        return null;
+      }
+      resource = result;
     }
-    ReadIteratorResource<Read, ReadGroupSet, Reference> result =  
-        queryForInterval(currentInterval());
     LOG.info("Interval query took: " + w);
     startTiming();
     return result;
   }
   
-  /** Queries the API for an interval and returns the iterator resource, or null if failed */
+  /** Returns the iterator over the records of the current interval */
+  synchronized Iterator<SAMRecord> openInterval() {
+    if (closed) {
+      return null;
+    }
+    if (currentPrefetch != null) {
+      return currentPrefetch.iterator;
+    }
+    return resource.getSAMRecordIterable().iterator();
+  }
+  
+  /**
+   * Opens the streams of the current interval and of the next 
+   * prefetchIntervals ones, if not already open.
+   */
+  void schedulePrefetches() {
+    if (prefetches == null) {
+      prefetches = new ArrayDeque<Prefetch>();
+      prefetchExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+          .setDaemon(true)
+          .setNameFormat("ga4gh-prefetch-%d")
+          .build());
+    }
+    final int last = Math.min(plan.size() - 1, intervalIndex + prefetchIntervals);
+    int next = intervalIndex + prefetches.size();
+    while (next <= last) {
+      final Prefetch prefetch = new Prefetch(plan.getStreams()[next]);
+      prefetch.future = prefetchExecutor.submit(prefetch);
+      prefetches.addLast(prefetch);
+      next++;
+    }
+  }
+  
+  /** Cancels the streams opened ahead and stops their threads */
+  synchronized void stopPrefetching() {
+    if (prefetches != null) {
+      for (Prefetch prefetch : prefetches) {
+        prefetch.cancel();
+      }
+      prefetches.clear();
+    }
+    if (prefetchExecutor != null) {
+      prefetchExecutor.shutdownNow();
+      prefetchExecutor = null;
+    }
+  }
+  
+  /**
+   * Estimates the memory taken by a buffered record, to bound prefetched data.
+   */
+  private static final ReadAheadIterable.Sizer<SAMRecord> RECORD_SIZER = 
+      new ReadAheadIterable.Sizer<SAMRecord>() {
+        @Override
+        public long sizeOf(SAMRecord record) {
+          // Object overheads, bases and qualities as arrays, the name as chars.
+          return 256 + 2L * record.getReadLength() + 2L * record.getReadName().length();
+        }
+      };
+  
+  /**
+   * A stream opened ahead of its turn: the query is made and records are 
+   * buffered on background threads, up to a share of prefetchBytes.
+   */
+  class Prefetch implements Callable<Iterator<SAMRecord>> {
+    final GA4GHQueryInterval interval;
+    Future<Iterator<SAMRecord>> future;
+    volatile ReadIteratorResource<Read, ReadGroupSet, Reference> resource;
+    volatile ReadAheadIterable<SAMRecord> readAhead;
+    volatile boolean cancelled;
+    Iterator<SAMRecord> iterator;
+    
+    Prefetch(GA4GHQueryInterval interval) {
+      this.interval = interval;
+    }
+
+    @Override
+    public Iterator<SAMRecord> call() {
+      resource = queryForInterval(interval);
+      if (resource == null) {
+        return null;
+      }
+      readAhead = new ReadAheadIterable<SAMRecord>(resource.getSAMRecordIterable(), 0,
+          Math.max(1, prefetchBytes / (prefetchIntervals + 1)), RECORD_SIZER);
+      if (cancelled) {
+        // Cancelled while the query was made, nobody else will close it.
+        cancel();
+        return null;
+      }
+      return readAhead.iterator();
+    }
+    
+    /**
+     * Waits for the stream to be open and returns its resource, 
+     * or null if it was cancelled. Throws if the query failed.
+     */
+    ReadIteratorResource<Read, ReadGroupSet, Reference> await() {
+      try {
+        iterator = future.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        cancel();
+        throw new SAMException("Interrupted while waiting for interval " + interval, ex);
+      } catch (ExecutionException ex) {
+        cancel();
+        if (ex.getCause() instanceof SAMException) {
+          throw (SAMException) ex.getCause();
+        }
+        throw new SAMException("Error getting data for interval " + interval, ex.getCause());
+      } catch (CancellationException ex) {
+        // Closed while waiting.
+      }
+      if (iterator == null) {
+        cancel();
+        return null;
+      }
+      return resource;
+    }
+    
+    void cancel() {
+      cancelled = true;
+      if (future != null) {
+        future.cancel(true);
+      }
+      if (readAhead != null) {
+        readAhead.close();
+      }
+      if (resource != null) {
+        resource.close();
+      }
+    }
+  }
+  
+  /**
+   * Queries the API for an interval and returns the iterator resource, or null
+   * if the iterator has been closed. Failures are thrown rather than skipping
+   * the interval, which would silently truncate the reads.
+   */
   ReadIteratorResource<Read, ReadGroupSet, Reference> queryForInterval(GA4GHQueryInterval interval) {
+    final GenomicsDataSource<Read, ReadGroupSet, Reference> dataSource = this.dataSource;
+    if (dataSource == null) {
+      return null;
+    }
     try {
-      return dataSource.getReads(readSetId, interval.getSequence(),
-          interval.getStart(), interval.getEnd());
+      if (session == null) {
+        session = dataSource.openSession(readSetId);
+      }
+      return dataSource.getReads(session, interval.getSequence(),
+          interval.getQueryStart(), interval.getQueryEnd());
     } catch (Exception ex) {
-      LOG.warning("Error getting data for interval " + ex.toString());
+      LOG.warning("Error getting data for interval " + interval + ": " + ex.toString());
+      throw new SAMException("Error getting data for interval " + interval, ex);
     }
-    return null;
   }
   
   /**
@@ -113,27 +372,39 @@ public class GA4GHSamRecordIterator<Read, ReadGroupSet, Reference>
    * for the next interval.
    */
   void seekMatchingRead()  {
+    if (plan == null && !isAtEnd()) {
+      planIntervals();
+    }
     while (!isAtEnd()) {
-      if (iterator == null || !iterator.hasNext()) {
+      // The field is cleared if closed from another thread.
+      final Iterator<SAMRecord> current = iterator;
+      if (current == null || !current.hasNext()) {
         LOG.info("Getting " + 
-            (iterator == null ? "first" : "next") + 
+            (current == null ? "first" : "next") + 
             " interval from the API");
         // We have hit an end (or this is first time) so we need to go fish
         // to the API.
-        ReadIteratorResource<Read, ReadGroupSet, Reference> resource = queryNextInterval();
-        if (resource != null) {
+        final ReadIteratorResource<Read, ReadGroupSet, Reference> result = 
+            queryNextInterval();
+        if (result != null) {
           LOG.info("Got next interval from the API");
-          header = resource.getSAMFileHeader();
-          iterator = resource.getSAMRecordIterable().iterator();
+          header = result.getSAMFileHeader();
+          iterator = openInterval();
         } else {
-          LOG.info("Failed to get next interval from the API");
+          // Only when closed, failed queries throw.
           header = null;
           iterator = null;
         }
       } else {
-        nextRead = iterator.next();
-        if (currentInterval().matches(nextRead)) {
+        nextRead = current.next();
+        if (plan.matches(intervalIndex, nextRead)) {
           return; // Happy case, otherwise we keep spinning in the loop.
+        } else if (plan.isPast(intervalIndex, nextRead)) {
+          // Reads are sorted, so the rest of the stream can not match,
+          // stop it instead of draining it.
+          LOG.info("Passed the end of the interval, stopping the query");
+          closeResource();
+          iterator = Collections.<SAMRecord>emptyIterator();
         } else {
           LOG.info("Skipping non matching read");
         }
@@ -142,11 +413,33 @@ public class GA4GHSamRecordIterator<Read, ReadGroupSet, Reference>
   }
  
   
+  /** Stops the query of the current interval, if any */
+  synchronized void closeResource() {
+    if (currentPrefetch != null) {
+      // Closes the resource as well.
+      currentPrefetch.cancel();
+      currentPrefetch = null;
+      resource = null;
+    }
+    if (resource != null) {
+      resource.close();
+      resource = null;
+    }
+  }
+  
+  /**
+   * Cancels the queries of the current and prefetched intervals and releases 
+   * their buffers and threads. Safe to call from another thread than the one
+   * iterating, which then sees the end of the records.
+   */
   @Override
-  public void close() {
+  public synchronized void close() {
+    closed = true;
+    closeResource();
+    stopPrefetching();
     this.iterator = null;
     this.dataSource = null;
-    this.intervalIndex = intervals.length;
+    this.intervals = null;
   }
 
   @Override
@@ -177,9 +470,10 @@ public class GA4GHSamRecordIterator<Read, ReadGroupSet, Reference>
     return header;
   }
   
+  /** Restarts the timing for the stream of the next interval */
   void startTiming() {
     processedReads = 0;
-    timer.start(); 
+    timer.reset().start();
   }
   
   void updateTiming() {
@@ -198,7 +492,8 @@ public class GA4GHSamRecordIterator<Read, ReadGroupSet, Reference>
       return;
     }
     LOG.info("Processed " + processedReads + " reads in " + timer + 
-        ". Speed: " + (processedReads*1000)/timer.elapsed(TimeUnit.MILLISECONDS) + " reads/sec");
+        ". Speed: " + (processedReads*1000)/Math.max(1, timer.elapsed(TimeUnit.MILLISECONDS)) + 
+        " reads/sec");
     
   }
 }
@@ -0,0 +1,118 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.htsjdk;
+
+import htsjdk.samtools.SAMRecord;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paired reads of recently streamed queries and mate windows, keyed by 
+ * fragment name, end and alignment position, so that queryMate lookups for 
+ * mates already seen do not go back to the API.
+ * The least recently used entries are evicted once the cache holds more than
+ * the configured number of keys.
+ * Records streamed again by a later window replace the ones of the earlier
+ * window rather than being reported as duplicates.
+ * Thread safe, so iterators can fill it while consumed on other threads.
+ */
+public class MateCache {
+  private static class CachedMates {
+    final long window;
+    final List<SAMRecord> records = new ArrayList<SAMRecord>(1);
+
+    CachedMates(long window) {
+      this.window = window;
+    }
+  }
+
+  private final LinkedHashMap<String, CachedMates> entries;
+  private long hits;
+  private long misses;
+
+  public MateCache(final int capacity) {
+    entries = new LinkedHashMap<String, CachedMates>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedMates> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /** Returns the key a paired record is cached under */
+  public static String getKey(SAMRecord record) {
+    return getKey(record.getReadName(), record.getFirstOfPairFlag(),
+        record.getReferenceName(), record.getAlignmentStart());
+  }
+
+  /** Returns the key the mate of a paired record is cached under */
+  public static String getMateKey(SAMRecord record) {
+    return getKey(record.getReadName(), !record.getFirstOfPairFlag(),
+        record.getMateReferenceName(), record.getMateAlignmentStart());
+  }
+
+  private static String getKey(String readName, boolean firstOfPair,
+      String referenceName, int alignmentStart) {
+    return new StringBuilder(readName.length() + referenceName.length() + 16)
+        .append(readName)
+        .append(firstOfPair ? "/1\t" : "/2\t")
+        .append(referenceName)
+        .append(':')
+        .append(alignmentStart)
+        .toString();
+  }
+
+  /**
+   * Adds a paired record streamed by the given window.
+   */
+  public synchronized void add(SAMRecord record, long window) {
+    final String key = getKey(record);
+    CachedMates entry = entries.get(key);
+    if (entry == null || entry.window != window) {
+      entry = new CachedMates(window);
+      entries.put(key, entry);
+    }
+    entry.records.add(record);
+  }
+
+  /**
+   * Returns the records cached under the key, or null if there are none.
+   */
+  public synchronized List<SAMRecord> get(String key) {
+    final CachedMates entry = entries.get(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.records;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.picard.runner;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriterImpl;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes BAM into a stream at a given compression level, which 
+ * SAMFileWriterFactory only offers for files.
+ * Records are encoded by htsjdk's BAMRecordCodec into BGZF blocks, the same
+ * way its own BAM writer does.
+ */
+public class BAMStreamWriter extends SAMFileWriterImpl {
+  private static final byte[] BAM_MAGIC = { 'B', 'A', 'M', 1 };
+  
+  private final BinaryCodec codec;
+  private BAMRecordCodec recordCodec;
+  
+  /**
+   * @param compressionLevel of the blocks, from 0 (stored, uncompressed BGZF
+   *  blocks) to 9.
+   */
+  public BAMStreamWriter(OutputStream out, int compressionLevel) {
+    if (compressionLevel < 0 || compressionLevel > 9) {
+      throw new IllegalArgumentException("Invalid compression level " + compressionLevel);
+    }
+    codec = new BinaryCodec(new DataOutputStream(
+        new BlockCompressedOutputStream(out, null, compressionLevel)));
+  }
+  
+  /**
+   * Returns a writer of BAM into the stream, with the header written.
+   */
+  public static BAMStreamWriter makeBAMWriter(SAMFileHeader header, boolean presorted, 
+      OutputStream out, int compressionLevel) {
+    final BAMStreamWriter writer = new BAMStreamWriter(out, compressionLevel);
+    writer.setSortOrder(header.getSortOrder(), presorted);
+    writer.setHeader(header);
+    return writer;
+  }
+  
+  @Override
+  protected void writeHeader(String textHeader) {
+    codec.writeBytes(BAM_MAGIC);
+    codec.writeString(textHeader, true, false);
+    codec.writeInt(getFileHeader().getSequenceDictionary().size());
+    for (SAMSequenceRecord sequence : 
+        getFileHeader().getSequenceDictionary().getSequences()) {
+      codec.writeString(sequence.getSequenceName(), true, true);
+      codec.writeInt(sequence.getSequenceLength());
+    }
+  }
+  
+  @Override
+  protected void writeAlignment(SAMRecord record) {
+    if (recordCodec == null) {
+      recordCodec = new BAMRecordCodec(getFileHeader());
+      recordCodec.setOutputStream(codec.getOutputStream());
+    }
+    recordCodec.encode(record);
+  }
+  
+  @Override
+  protected void finish() {
+    // Writes the BGZF end of file block and closes the stream.
+    codec.close();
+  }
+  
+  @Override
+  protected String getFilename() {
+    return null;
+  }
+}
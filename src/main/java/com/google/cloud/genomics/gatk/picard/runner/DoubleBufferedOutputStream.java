@@ -0,0 +1,273 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.picard.runner;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Writes into an underlying stream on a separate writer thread, through two
+ * buffers: one is filled while the other is written. 
+ * When the reader of a pipe stops draining it for a while, e.g. while a 
+ * Picard tool spills to disk, the writing thread keeps filling its buffer 
+ * instead of blocking, so the network streams feeding it do not stall and 
+ * time out until the buffer is full as well.
+ * How long each side waited for the other and the throughput are logged
+ * once the stream is closed.
+ */
+public class DoubleBufferedOutputStream extends OutputStream {
+  private static final Logger LOG = Logger.getLogger(DoubleBufferedOutputStream.class.getName());
+  
+  private final OutputStream out;
+  private final String name;
+  
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition bufferFree = lock.newCondition();
+  private final Condition bufferPending = lock.newCondition();
+  
+  /** Buffer being filled, owned by the writing thread */
+  private byte[] current;
+  private int count;
+  /** Buffer neither filled nor written, null while the writer thread has it */
+  private byte[] free;
+  /** Buffer handed off to the writer thread and not yet taken by it */
+  private byte[] pending;
+  private int pendingLength;
+  private boolean pendingFlush;
+  private boolean finished;
+  private Throwable failure;
+  private boolean closed;
+  
+  private final Thread writer;
+  
+  private final long startNanos = System.nanoTime();
+  private long bytesWritten;
+  private long stalls;
+  private long stallNanos;
+  private long writeNanos;
+  private long writerIdleNanos;
+  
+  /**
+   * @param bufferBytes size of each of the two buffers.
+   * @param name of the data written, for the thread name and log.
+   */
+  public DoubleBufferedOutputStream(OutputStream out, int bufferBytes, String name) {
+    if (bufferBytes <= 0) {
+      throw new IllegalArgumentException("Invalid buffer size " + bufferBytes);
+    }
+    this.out = out;
+    this.name = name;
+    current = new byte[bufferBytes];
+    free = new byte[bufferBytes];
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "ga4gh-pipe-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+  
+  @Override
+  public void write(int b) throws IOException {
+    if (count == current.length) {
+      handOff(false);
+    }
+    current[count++] = (byte) b;
+  }
+  
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (count == current.length) {
+        handOff(false);
+      }
+      final int chunk = Math.min(len, current.length - count);
+      System.arraycopy(b, off, current, count, chunk);
+      count += chunk;
+      off += chunk;
+      len -= chunk;
+    }
+  }
+  
+  /** Hands off what was written so far, to be written and flushed without waiting */
+  @Override
+  public void flush() throws IOException {
+    if (count > 0) {
+      handOff(true);
+    }
+  }
+  
+  /** Writes the rest, waits for the writer thread and closes the underlying stream */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      try {
+        if (count > 0) {
+          handOff(true);
+        }
+      } finally {
+        // The writer thread ends once it has written what was handed off.
+        lock.lock();
+        try {
+          finished = true;
+          bufferPending.signal();
+        } finally {
+          lock.unlock();
+        }
+      }
+      writer.join();
+    } catch (InterruptedException ex) {
+      writer.interrupt();
+      throw new InterruptedIOException("Interrupted while writing " + name);
+    } finally {
+      out.close();
+    }
+    logStats();
+    checkFailure();
+  }
+  
+  /** 
+   * Passes the current buffer to the writer thread, waiting for the other one
+   * to be written first if the writer is still at it.
+   */
+  private void handOff(boolean flush) throws IOException {
+    lock.lock();
+    try {
+      if (free == null && failure == null) {
+        stalls++;
+        final long start = System.nanoTime();
+        do {
+          bufferFree.await();
+        } while (free == null && failure == null);
+        stallNanos += System.nanoTime() - start;
+      }
+      checkFailure();
+      pending = current;
+      pendingLength = count;
+      pendingFlush = flush;
+      current = free;
+      free = null;
+      count = 0;
+      bufferPending.signal();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing " + name);
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("Failed writing " + name, failure);
+    }
+  }
+  
+  private void drain() {
+    try {
+      while (true) {
+        final byte[] buffer;
+        final int length;
+        final boolean flush;
+        lock.lock();
+        try {
+          final long start = System.nanoTime();
+          while (pending == null && !finished) {
+            bufferPending.await();
+          }
+          writerIdleNanos += System.nanoTime() - start;
+          if (pending == null) {
+            return;
+          }
+          buffer = pending;
+          length = pendingLength;
+          flush = pendingFlush;
+          pending = null;
+        } finally {
+          lock.unlock();
+        }
+        final long start = System.nanoTime();
+        out.write(buffer, 0, length);
+        if (flush) {
+          out.flush();
+        }
+        final long elapsed = System.nanoTime() - start;
+        lock.lock();
+        try {
+          writeNanos += elapsed;
+          bytesWritten += length;
+          free = buffer;
+          bufferFree.signal();
+        } finally {
+          lock.unlock();
+        }
+      }
+    } catch (Throwable ex) {
+      lock.lock();
+      try {
+        failure = ex;
+        bufferFree.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+  
+  private void logStats() {
+    final double seconds = (System.nanoTime() - startNanos) / 1e9;
+    LOG.info(String.format("Piped %s: %.1f MB in %.1f s, %.1f MB/s; " +
+        "stalled %d times for %.1f s on a slow reader, " +
+        "writes took %.1f s, writer idle %.1f s waiting for data",
+        name, bytesWritten / 1e6, seconds, bytesWritten / 1e6 / seconds,
+        stalls, toSeconds(stallNanos), toSeconds(writeNanos), 
+        toSeconds(writerIdleNanos)));
+  }
+  
+  private static double toSeconds(long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos) / 1000.0;
+  }
+  
+  /** Bytes written into the underlying stream so far */
+  public long getBytesWritten() {
+    lock.lock();
+    try {
+      return bytesWritten;
+    } finally {
+      lock.unlock();
+    }
+  }
+  
+  /** Total time spent waiting for the reader, with both buffers full */
+  public long getStallNanos() {
+    lock.lock();
+    try {
+      return stallNanos;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -17,6 +17,7 @@ package com.google.cloud.genomics.gatk.picard.runner;
 
 import com.google.cloud.genomics.gatk.common.GA4GHUrl;
 import com.google.cloud.genomics.gatk.common.GenomicsDataSourceFactory.Settings;
+import com.google.cloud.genomics.gatk.common.ReadProjection;
 import com.google.cloud.genomics.gatk.common.rest.GenomicsDataSourceFactoryRest;
 import com.google.cloud.genomics.gatk.common.grpc.GenomicsDataSourceFactoryGrpc;
 
@@ -28,12 +29,21 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -64,6 +74,93 @@ public class GA4GHPicardRunner {
       description = "Use Grpc for API access")
   public boolean usingGrpc = false;
   
+  @Parameter(names = "--stream_shards",
+      description = "Number of concurrent streams to split each range into (GRPC only)")
+  public int streamShards = 1;
+  
+  @Parameter(names = "--grpc_channels",
+      description = "Number of connections to spread concurrent streams over (GRPC only)")
+  public int grpcChannels = 1;
+  
+  @Parameter(names = "--least_loaded_channels",
+      description = "Place each stream on the connection with the fewest active streams " +
+          "instead of round-robin (GRPC only)")
+  public boolean leastLoadedChannels = false;
+  
+  @Parameter(names = "--stream_window_bytes",
+      description = "Flow control window of each stream, 0 for the default (GRPC only)")
+  public int streamWindowBytes = new Settings().streamWindowBytes;
+  
+  @Parameter(names = "--connection_window_bytes",
+      description = "Flow control window of each connection, 0 for the default (GRPC only)")
+  public int connectionWindowBytes = 0;
+  
+  @Parameter(names = "--stream_retries",
+      description = "Number of times a failed stream is resumed before giving up, 0 to never retry")
+  public int streamRetries = new Settings().streamRetries;
+  
+  @Parameter(names = "--retry_initial_backoff_millis",
+      description = "Wait before the first retry of a failed stream, doubled for each further one")
+  public long retryInitialBackoffMillis = new Settings().retryInitialBackoffMillis;
+  
+  @Parameter(names = "--retry_max_backoff_millis",
+      description = "Longest wait before a retry of a failed stream")
+  public long retryMaxBackoffMillis = new Settings().retryMaxBackoffMillis;
+  
+  @Parameter(names = "--read_ahead_reads",
+      description = "Number of reads to fetch ahead on a separate thread, 0 for no limit")
+  public int readAheadReads = 0;
+  
+  @Parameter(names = "--read_ahead_bytes",
+      description = "Size in bytes of reads to fetch ahead on a separate thread, 0 for no limit")
+  public long readAheadBytes = 0;
+  
+  @Parameter(names = "--conversion_threads",
+      description = "Number of threads converting reads to SAM records, 0 to convert inline")
+  public int conversionThreads = 0;
+  
+  @Parameter(names = "--lazy_sam_records",
+      description = "Decode bases, qualities, CIGAR and tags of records only when accessed")
+  public boolean lazySAMRecords = false;
+  
+  @Parameter(names = "--read_projection",
+      description = "Fields of reads to fetch: all, no_qualities, no_tags, " +
+          "no_qualities_or_tags or positions_and_flags")
+  public String readProjection = "all";
+  
+  @Parameter(names = "--reference_cache_dir",
+      description = "Directory for caching reference set metadata across runs, " +
+          "empty to only cache it in memory")
+  public String referenceCacheDir = "";
+  
+  @Parameter(names = "--off_heap_unmapped_mates",
+      description = "Keep unmapped mates serialized off-heap, spilling to disk")
+  public boolean offHeapUnmappedMates = false;
+  
+  @Parameter(names = "--unmapped_mates_memory_bytes",
+      description = "Memory budget for off-heap unmapped mates before spilling to disk")
+  public long unmappedMatesMemoryBytes = new Settings().unmappedMatesMemoryBytes;
+  
+  @Parameter(names = "--expected_unmapped_mates",
+      description = "Number of unmapped mates the mate lookup filter is sized for")
+  public long expectedUnmappedMates = new Settings().expectedUnmappedMates;
+  
+  @Parameter(names = "--unmapped_mates_sidecar_dir",
+      description = "Directory to save unmapped mates of a readset in for reuse by later runs")
+  public String unmappedMatesSidecarDir = "";
+  
+  @Parameter(names = "--spill_dir",
+      description = "Directory for spill files, empty for the default temporary directory")
+  public String spillDir = "";
+  
+  @Parameter(names = "--sequential_unmapped_scan",
+      description = "Collect unmapped mates before returning mapped reads")
+  public boolean sequentialUnmappedScan = false;
+  
+  @Parameter(names = "--unmapped_mates_grouped_by_reference",
+      description = "Unmapped reads are returned grouped by the reference of their mates")
+  public boolean unmappedMatesGroupedByReference = false;
+  
   @Parameter(names = "-path",
       description = "Path to picard tools binaries")
   public String picardPath = "picard/dist";
@@ -77,7 +174,6 @@ public class GA4GHPicardRunner {
       description = "JVM args for Picard tool run")
   public String picardJVMArgs = "-Xmx4g";
    
-  // TODO(iliat): support multiple inputs
   @Parameter(description = 
       "Picard tool parameters, INPUT(s) can be files or GA4GH urls.")
   public List<String> picardArgs = new ArrayList<String>();
@@ -86,6 +182,20 @@ public class GA4GHPicardRunner {
       description = "Pipe local files too")
   public Boolean pipeFiles = true;
   
+  @Parameter(names = "--pipe_format",
+      description = "Format of records piped to the Picard tool: sam or bam")
+  public String pipeFormat = "sam";
+  
+  @Parameter(names = "--pipe_compression_level",
+      description = "Compression level of BAM piped to the Picard tool, " +
+          "0 for uncompressed blocks")
+  public int pipeCompressionLevel = 0;
+  
+  @Parameter(names = "--pipe_buffer_bytes",
+      description = "Size of each of the two buffers between a pump and the writer " +
+          "thread of its pipe, 0 to write on the pumping thread")
+  public int pipeBufferBytes = 8 * 1024 * 1024;
+  
   static String INPUT_PREFIX = "INPUT=";
   
   static String STDIN_FILE_NAME = "/dev/stdin";
@@ -96,9 +206,15 @@ public class GA4GHPicardRunner {
   /** List of INPUT=... parameters to process and potentially pipe through */
   private ArrayList<Input> inputs = new ArrayList<Input>();
   
+  /** Directory of the named pipes inputs are pumped into, if more than one is */
+  private File pipeDir;
+  
   /** Picard process */
   private Process process;
   
+  /** Pumps each writing one input on its own thread */
+  private ExecutorService pumpExecutor;
+  
   /** Factory for creating Genomics Api based data sources */
   private GenomicsDataSourceFactoryRest factoryRest = new GenomicsDataSourceFactoryRest();
   private GenomicsDataSourceFactoryGrpc factoryGrpc = new GenomicsDataSourceFactoryGrpc();
@@ -136,6 +252,11 @@ public class GA4GHPicardRunner {
     private String resource;
     private String pipeName;
     private SAMFilePump pump;
+    /** Whether the pump has opened the pipe, after which Picard has too */
+    private volatile boolean pipeOpened;
+    /** Whether the process ended without opening the pipe */
+    private boolean pipeAbandoned;
+    private Future<Void> pumped;
   }
   
   /** Runs the program */
@@ -155,10 +276,17 @@ public class GA4GHPicardRunner {
       buildPicardCommand();
       startProcess();
       pumpInputData();
-      waitForProcessEnd();
+      try {
+        waitForProcessEnd();
+      } finally {
+        releaseAbandonedPipes();
+      }
+      waitForPumpsEnd();
     } catch (Exception e) {
       System.out.println(e.getMessage());
       e.printStackTrace();
+    } finally {
+      deletePipes();
     }
   }
   
@@ -195,11 +323,64 @@ public class GA4GHPicardRunner {
         command.add(picardArg);
       }
     }
+    makePipes();
     for (Input input : inputs) {
       command.add("INPUT=" + input.pipeName);
     }
   }
   
+  /**
+   * A single piped input goes through stdin, but stdin can only carry one,
+   * so if there are more each gets its own named pipe instead.
+   */
+  private void makePipes() throws IOException {
+    int pipedInputs = 0;
+    for (Input input : inputs) {
+      if (input.pump != null) {
+        pipedInputs++;
+      }
+    }
+    if (pipedInputs < 2) {
+      return;
+    }
+    pipeDir = Files.createTempDirectory("ga4gh_picard").toFile();
+    int index = 0;
+    for (Input input : inputs) {
+      if (input.pump == null) {
+        continue;
+      }
+      final File pipe = new File(pipeDir, "input" + index++);
+      mkfifo(pipe);
+      input.pipeName = pipe.getAbsolutePath();
+    }
+    LOG.info("Piping " + pipedInputs + " inputs through named pipes in " + pipeDir);
+  }
+  
+  private static void mkfifo(File pipe) throws IOException {
+    final Process mkfifo = new ProcessBuilder("mkfifo", pipe.getAbsolutePath())
+        .redirectErrorStream(true)
+        .start();
+    try {
+      if (mkfifo.waitFor() != 0) {
+        throw new IOException("Failed to create named pipe " + pipe);
+      }
+    } catch (InterruptedException ex) {
+      throw new IOException("Interrupted creating named pipe " + pipe, ex);
+    }
+  }
+  
+  private void deletePipes() {
+    if (pipeDir == null) {
+      return;
+    }
+    for (Input input : inputs) {
+      if (input.pump != null) {
+        new File(input.pipeName).delete();
+      }
+    }
+    pipeDir.delete();
+  }
+  
   private Input processInput(String input) throws IOException, GeneralSecurityException, URISyntaxException {    
     if (GA4GHUrl.isGA4GHUrl(input)) {
       return processGA4GHInput(input);
@@ -213,29 +394,61 @@ public class GA4GHPicardRunner {
     GA4GHUrl url = new GA4GHUrl(input);
     SAMFilePump pump;
     if (usingGrpc) {
-      factoryGrpc.configure(url.getRootUrl(), 
-        new Settings(clientSecretsFilename, apiKey, noLocalServer));
+      factoryGrpc.configure(url.getRootUrl(), makeSettings());
       pump = new ReadIteratorToSAMFilePump<
           com.google.genomics.v1.Read,
           com.google.genomics.v1.ReadGroupSet, 
           com.google.genomics.v1.Reference>(
               factoryGrpc
                 .get(url.getRootUrl())
-                .getReads(url));
+                .getReads(url),
+              makePipeFormat());
     } else {
-      factoryRest.configure(url.getRootUrl(), 
-          new Settings(clientSecretsFilename, apiKey, noLocalServer));
+      factoryRest.configure(url.getRootUrl(), makeSettings());
         pump = new ReadIteratorToSAMFilePump<
             com.google.api.services.genomics.model.Read,
             com.google.api.services.genomics.model.ReadGroupSet, 
             com.google.api.services.genomics.model.Reference>(
                 factoryRest
                   .get(url.getRootUrl())
-                  .getReads(url)); 
+                  .getReads(url),
+                makePipeFormat()); 
     }
     return new Input(input, STDIN_FILE_NAME, pump);
   }
   
+  /** Makes data source settings from cmd line parameters */
+  private Settings makeSettings() {
+    Settings settings = new Settings(clientSecretsFilename, apiKey, noLocalServer);
+    settings.streamShards = streamShards;
+    settings.grpcChannels = grpcChannels;
+    settings.leastLoadedChannels = leastLoadedChannels;
+    settings.streamWindowBytes = streamWindowBytes;
+    settings.connectionWindowBytes = connectionWindowBytes;
+    settings.streamRetries = streamRetries;
+    settings.retryInitialBackoffMillis = retryInitialBackoffMillis;
+    settings.retryMaxBackoffMillis = retryMaxBackoffMillis;
+    settings.readAheadReads = readAheadReads;
+    settings.readAheadBytes = readAheadBytes;
+    settings.conversionThreads = conversionThreads;
+    settings.lazySAMRecords = lazySAMRecords;
+    settings.readProjection = ReadProjection.fromString(readProjection);
+    settings.referenceCacheDir = referenceCacheDir;
+    settings.offHeapUnmappedMates = offHeapUnmappedMates;
+    settings.unmappedMatesMemoryBytes = unmappedMatesMemoryBytes;
+    settings.expectedUnmappedMates = expectedUnmappedMates;
+    settings.unmappedMatesSidecarDir = unmappedMatesSidecarDir;
+    settings.spillDir = spillDir;
+    settings.concurrentUnmappedScan = !sequentialUnmappedScan;
+    settings.unmappedMatesGroupedByReference = unmappedMatesGroupedByReference;
+    return settings;
+  }
+  
+  /** Makes the format of piped records from cmd line parameters */
+  private PipeFormat makePipeFormat() {
+    return PipeFormat.fromString(pipeFormat, pipeCompressionLevel);
+  }
+  
   /** Processes regular, non GA4GH based file input */
   private Input processRegularFileInput(String input) throws IOException {
     File inputFile = new File(input);
@@ -245,7 +458,7 @@ public class GA4GHPicardRunner {
     if (pipeFiles) {
       SamReader samReader = SamReaderFactory.makeDefault().open(inputFile);
       return new Input(input, STDIN_FILE_NAME, 
-          new SamReaderToSAMFilePump(samReader)); 
+          new SamReaderToSAMFilePump(samReader, makePipeFormat())); 
     } else {
       return new Input(input, input, null);
     }
@@ -267,22 +480,102 @@ public class GA4GHPicardRunner {
   }
   
   /**
-   * Loops through inputs and for each, pumps the data into the proper pipe 
-   * stream connected to the executing process.
+   * Starts pumping the data of each input into the proper pipe stream 
+   * connected to the executing process, each input on its own thread so 
+   * that tools reading several inputs at once get all of them.
    * @throws IOException
    */
   private void pumpInputData() throws IOException {
-    for (Input input : inputs) {
+    boolean stdinPiped = false;
+    pumpExecutor = Executors.newCachedThreadPool();
+    for (final Input input : inputs) {
       if (input.pump == null) {
         continue;
       }
-      OutputStream os;
-      if (input.pipeName.equals(STDIN_FILE_NAME)) {
-        os = process.getOutputStream();
-      } else {
-        throw new IOException("Only stdin piping is supported so far.");
-      }
+      stdinPiped |= input.pipeName.equals(STDIN_FILE_NAME);
+      input.pumped = pumpExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          pumpInput(input);
+          return null;
+        }
+      });
+    }
+    pumpExecutor.shutdown();
+    if (!stdinPiped) {
+      process.getOutputStream().close();
+    }
+  }
+  
+  private void pumpInput(Input input) throws IOException {
+    OutputStream os;
+    if (input.pipeName.equals(STDIN_FILE_NAME)) {
+      os = process.getOutputStream();
+    } else {
+      // Blocks until Picard opens the pipe for reading.
+      os = new FileOutputStream(input.pipeName);
+    }
+    input.pipeOpened = true;
+    if (pipeBufferBytes > 0) {
+      // Absorbs the times Picard is not reading, so fetching does not stall.
+      os = new DoubleBufferedOutputStream(os, pipeBufferBytes, input.resource);
+    }
+    LOG.info("Pumping " + input.resource + " into " + input.pipeName);
+    try {
       input.pump.pump(os);
+    } finally {
+      // Picard sees the end of the input even if pumping failed.
+      os.close();
+    }
+    LOG.info("Done pumping " + input.resource);
+  }
+  
+  /** Waits for all pumps to finish, throwing the failure of the first failed one */
+  private void waitForPumpsEnd() throws Exception {
+    Exception failure = null;
+    for (Input input : inputs) {
+      if (input.pumped == null) {
+        continue;
+      }
+      try {
+        input.pumped.get();
+      } catch (ExecutionException ex) {
+        if (input.pipeAbandoned) {
+          LOG.warning("Picard tool did not read " + input.resource);
+          continue;
+        }
+        LOG.log(Level.SEVERE, "Failed pumping " + input.resource, ex.getCause());
+        if (failure == null) {
+          failure = new IOException("Failed pumping " + input.resource, ex.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+  
+  /**
+   * Releases pumps still waiting for a named pipe after the process has 
+   * ended, as it is never going to open it.
+   */
+  private void releaseAbandonedPipes() {
+    if (pumpExecutor == null) {
+      return;
+    }
+    for (Input input : inputs) {
+      if (input.pumped == null || input.pumped.isDone() || input.pipeOpened ||
+          input.pipeName.equals(STDIN_FILE_NAME)) {
+        continue;
+      }
+      // Opening the other end releases the pump from its open, closing it 
+      // right away then fails its writes.
+      input.pipeAbandoned = true;
+      try {
+        new FileInputStream(input.pipeName).close();
+      } catch (IOException ex) {
+        LOG.log(Level.WARNING, "Failed to release pump of " + input.resource, ex);
+      }
     }
   }
   
@@ -0,0 +1,79 @@
+/*
+Copyright 2015 Google Inc. All rights reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package com.google.cloud.genomics.gatk.picard.runner;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+
+import java.io.OutputStream;
+
+/**
+ * Format in which pumps write records into a pipe: text SAM, or BAM at a 
+ * given compression level. 
+ * BAM saves both processes the text formatting and parsing of every record,
+ * at level 0 its blocks are stored uncompressed so no deflating happens either.
+ */
+public class PipeFormat {
+  public static final PipeFormat SAM = new PipeFormat(false, 0);
+  
+  private final boolean bam;
+  private final int compressionLevel;
+  
+  private PipeFormat(boolean bam, int compressionLevel) {
+    this.bam = bam;
+    this.compressionLevel = compressionLevel;
+  }
+  
+  public static PipeFormat bam(int compressionLevel) {
+    if (compressionLevel < 0 || compressionLevel > 9) {
+      throw new IllegalArgumentException("Invalid BAM compression level " + 
+          compressionLevel);
+    }
+    return new PipeFormat(true, compressionLevel);
+  }
+  
+  /** Parses "sam" or "bam", the level only applies to the latter */
+  public static PipeFormat fromString(String format, int compressionLevel) {
+    if (format.equalsIgnoreCase("sam")) {
+      return SAM;
+    } else if (format.equalsIgnoreCase("bam")) {
+      return bam(compressionLevel);
+    }
+    throw new IllegalArgumentException("Unknown pipe format " + format);
+  }
+  
+  public boolean isBAM() {
+    return bam;
+  }
+  
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+  
+  /** Makes a writer of presorted records into the stream */
+  public SAMFileWriter makeWriter(SAMFileHeader header, OutputStream out) {
+    if (bam) {
+      return BAMStreamWriter.makeBAMWriter(header, true, out, compressionLevel);
+    }
+    return new SAMFileWriterFactory().makeSAMWriter(header, true, out);
+  }
+  
+  @Override
+  public String toString() {
+    return bam ? "bam(" + compressionLevel + ")" : "sam";
+  }
+}
@@ -18,30 +18,42 @@ package com.google.cloud.genomics.gatk.picard.runner;
 import com.google.cloud.genomics.gatk.common.ReadIteratorResource;
 
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 
 import java.io.OutputStream;
 
 /**
- * Writes contents of the ReadIteratorResource into the stream as a SAM file.
+ * Writes contents of the ReadIteratorResource into the stream as a SAM file,
+ * in text or BAM format.
  */
 public class ReadIteratorToSAMFilePump<Read, ReadGroupSet, Reference> implements SAMFilePump {
   private ReadIteratorResource<Read, ReadGroupSet, Reference> readIterator;
+  private PipeFormat format;
    
   public ReadIteratorToSAMFilePump(ReadIteratorResource<Read, ReadGroupSet, Reference> readIterator) {
+    this(readIterator, PipeFormat.SAM);
+  }
+  
+  public ReadIteratorToSAMFilePump(ReadIteratorResource<Read, ReadGroupSet, Reference> readIterator,
+      PipeFormat format) {
     this.readIterator = readIterator;
+    this.format = format;
   }
   
   @Override
   public void pump(OutputStream out) {
-    final SAMFileWriter outputSam = new SAMFileWriterFactory().makeSAMWriter(
-        readIterator.getSAMFileHeader(), true, out);
-
-    for (final SAMRecord samRecord : readIterator.getSAMRecordIterable()) {
-        outputSam.addAlignment(samRecord);
+    try {
+      final SAMFileWriter outputSam = format.makeWriter(
+          readIterator.getSAMFileHeader(), out);
+
+      for (final SAMRecord samRecord : readIterator.getSAMRecordIterable()) {
+          outputSam.addAlignment(samRecord);
+      }
+
+      outputSam.close();
+    } finally {
+      // Stops streaming and read-ahead if writing failed, e.g. Picard exited.
+      readIterator.close();
     }
-
-    outputSam.close();
   }
 }
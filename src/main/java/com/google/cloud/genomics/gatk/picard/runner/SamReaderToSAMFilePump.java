@@ -17,7 +17,6 @@ package com.google.cloud.genomics.gatk.picard.runner;
 
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
 
 import java.io.IOException;
@@ -25,21 +24,26 @@ import java.io.OutputStream;
 
 /**
  * Reads SAM data using SamReader and pumps it into and OutputStream as a 
- * SAM File.
+ * SAM File, in text or BAM format.
  * This class is useful to test the piping of SAM data to Picard tools 
  * without involving actual reading of data through Genomics APIs.
  */
 public class SamReaderToSAMFilePump implements SAMFilePump {
   private SamReader reader;
+  private PipeFormat format;
   
   public SamReaderToSAMFilePump(SamReader reader) {
+    this(reader, PipeFormat.SAM);
+  }
+  
+  public SamReaderToSAMFilePump(SamReader reader, PipeFormat format) {
     this.reader = reader;
+    this.format = format;
   }
   
   @Override
   public void pump(OutputStream out) throws IOException {
-    final SAMFileWriter outputSam = new SAMFileWriterFactory().makeSAMWriter(
-        reader.getFileHeader(), true, out);
+    final SAMFileWriter outputSam = format.makeWriter(reader.getFileHeader(), out);
 
     for (final SAMRecord samRecord : reader) {
         outputSam.addAlignment(samRecord);